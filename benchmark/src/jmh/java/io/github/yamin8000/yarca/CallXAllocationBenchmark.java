@@ -0,0 +1,159 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Request;
+import okio.Timeout;
+import retrofit2.Call;
+import retrofit2.CallAdapter;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.scalars.ScalarsConverterFactory;
+import retrofit2.http.GET;
+
+/**
+ * Allocations of the {@link CallX} callback path, without the network.
+ * <p>
+ * The adapted call completes synchronously with a prebuilt response, and callbacks run on the calling thread,
+ * so the {@code gc.alloc.rate.norm} of the gc profiler is the number of bytes the adapter allocates per call,
+ * including the adapter itself. Like OkHttp's dispatcher and a real executor, the call and the executor keep
+ * what they are given, otherwise escape analysis would remove the allocations that a real call makes. Run with {@code ./gradlew :benchmark:jmh -Pjmh.includes=CallXAllocationBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallXAllocationBenchmark {
+
+    private static final Request REQUEST = new Request.Builder().url("http://localhost/payload").build();
+    private static final Response<String> RESPONSE = Response.success("payload");
+
+    interface Api {
+        @GET("payload")
+        CallX<String> callX();
+    }
+
+    //written by the call and the executor, so their arguments escape
+    private static volatile Object escaped;
+
+    private CallAdapter<String, CallX<String>> adapter;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws NoSuchMethodException {
+        var retrofit = new Retrofit.Builder()
+                .baseUrl("http://localhost/")
+                .addConverterFactory(ScalarsConverterFactory.create())
+                .build();
+        var method = Api.class.getDeclaredMethod("callX");
+        adapter = (CallAdapter<String, CallX<String>>) new CallXAdapterFactory(null, runnable -> {
+            escaped = runnable;
+            runnable.run();
+        })
+                .get(method.getGenericReturnType(), method.getAnnotations(), retrofit);
+    }
+
+    @Benchmark
+    public void enqueue(Blackhole blackhole) {
+        adapter.adapt(new ImmediateCall(false)).enqueue(
+                (call, response) -> blackhole.consume(response),
+                (call, t) -> blackhole.consume(t)
+        );
+    }
+
+    @Benchmark
+    public void async(Blackhole blackhole) {
+        adapter.adapt(new ImmediateCall(false)).async((response, t) -> {
+            blackhole.consume(response);
+            return false;
+        });
+    }
+
+    @Benchmark
+    public void asyncConsumers(Blackhole blackhole) {
+        adapter.adapt(new ImmediateCall(false)).async(false, blackhole::consume, blackhole::consume);
+    }
+
+    @Benchmark
+    public void asyncCanceled(Blackhole blackhole) {
+        adapter.adapt(new ImmediateCall(true)).async((response, t) -> {
+            blackhole.consume(t);
+            return false;
+        });
+    }
+
+    @Benchmark
+    public Object completableFuture() {
+        return adapter.adapt(new ImmediateCall(false)).toCompletableFuture(null);
+    }
+
+    /**
+     * A call that responds as soon as it's enqueued.
+     */
+    private static final class ImmediateCall implements Call<String> {
+        private final boolean isCanceled;
+        private boolean executed = false;
+
+        ImmediateCall(boolean isCanceled) {
+            this.isCanceled = isCanceled;
+        }
+
+        @Override
+        public @NotNull Response<String> execute() {
+            executed = true;
+            return RESPONSE;
+        }
+
+        @Override
+        public void enqueue(@NotNull Callback<String> callback) {
+            executed = true;
+            escaped = callback;
+            callback.onResponse(this, RESPONSE);
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return executed;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return isCanceled;
+        }
+
+        @Override
+        public @NotNull Call<String> clone() {
+            return new ImmediateCall(isCanceled);
+        }
+
+        @Override
+        public @NotNull Request request() {
+            return REQUEST;
+        }
+
+        @Override
+        public @NotNull Timeout timeout() {
+            return Timeout.NONE;
+        }
+    }
+}
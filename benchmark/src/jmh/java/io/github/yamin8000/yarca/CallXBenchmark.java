@@ -0,0 +1,238 @@
+package io.github.yamin8000.yarca;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ServerSocketFactory;
+
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.scalars.ScalarsConverterFactory;
+import retrofit2.http.GET;
+
+/**
+ * Overhead of {@link CallX} over a plain retrofit {@link Call}, against a local {@link MockWebServer}.
+ * <p>
+ * Both retrofit and the adapter deliver callbacks on the same executor, so the difference between the
+ * {@code plain} and {@code callX} benchmarks is the cost of the adapter: its callback, lambda captures and
+ * executor hop. Run with {@code ./gradlew :benchmark:jmh}, the gc profiler reports the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CallXBenchmark {
+
+    /**
+     * {@code direct} runs callbacks on the OkHttp thread, {@code single} on a single thread like the main looper.
+     */
+    @Param({"direct", "single"})
+    public String executor;
+
+    @Param({"64", "65536"})
+    public int payloadSize;
+
+    interface Api {
+        @GET("payload")
+        Call<String> plain();
+
+        @GET("payload")
+        CallX<String> callX();
+    }
+
+    private MockWebServer server;
+    private OkHttpClient client;
+    private ExecutorService callbackThread;
+    private Api api;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        //it logs every request
+        java.util.logging.Logger.getLogger(MockWebServer.class.getName()).setLevel(java.util.logging.Level.WARNING);
+        var payload = "x".repeat(payloadSize);
+        server = new MockWebServer();
+        server.setServerSocketFactory(new NoDelayServerSocketFactory());
+        server.setDispatcher(new okhttp3.mockwebserver.Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setBody(payload);
+            }
+        });
+        server.start();
+
+        var dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(64);
+        client = new OkHttpClient.Builder().dispatcher(dispatcher).build();
+
+        Executor callbackExecutor;
+        if ("single".equals(executor)) {
+            callbackThread = Executors.newSingleThreadExecutor();
+            callbackExecutor = callbackThread;
+        } else callbackExecutor = Runnable::run;
+
+        api = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .client(client)
+                .callbackExecutor(callbackExecutor)
+                .addConverterFactory(ScalarsConverterFactory.create())
+                .addCallAdapterFactory(new CallXAdapterFactory(null, callbackExecutor))
+                .build()
+                .create(Api.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (callbackThread != null) callbackThread.shutdownNow();
+        client.dispatcher().executorService().shutdownNow();
+        client.connectionPool().evictAll();
+        server.shutdown();
+    }
+
+    @Benchmark
+    public String plainExecute() throws IOException {
+        return api.plain().execute().body();
+    }
+
+    @Benchmark
+    public String callXExecute() throws IOException {
+        return api.callX().execute().body();
+    }
+
+    @Benchmark
+    public String plainEnqueue() throws Exception {
+        var future = new CompletableFuture<String>();
+        api.plain().enqueue(new Callback<>() {
+            @Override
+            public void onResponse(Call<String> call, Response<String> response) {
+                future.complete(response.body());
+            }
+
+            @Override
+            public void onFailure(Call<String> call, Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return await(future);
+    }
+
+    @Benchmark
+    public String callXEnqueue() throws Exception {
+        var future = new CompletableFuture<String>();
+        api.callX().enqueue(
+                (call, response) -> future.complete(response.body()),
+                (call, t) -> future.completeExceptionally(t)
+        );
+        return await(future);
+    }
+
+    @Benchmark
+    public String callXAsync() throws Exception {
+        var future = new CompletableFuture<String>();
+        api.callX().async((response, t) -> {
+            if (response != null) future.complete(response.body());
+            else future.completeExceptionally(t);
+            return false;
+        });
+        return await(future);
+    }
+
+    @Benchmark
+    public String callXEnqueueAsyncBody() throws Exception {
+        var future = new CompletableFuture<String>();
+        api.callX().enqueueAsyncBody(future::complete, future::completeExceptionally);
+        return await(future);
+    }
+
+    /**
+     * Disables Nagle's algorithm on the accepted sockets. MockWebServer flushes the response headers and body
+     * separately, so otherwise every response waits for a delayed ACK and the benchmarks measure the TCP stack
+     * instead of the adapter.
+     */
+    private static final class NoDelayServerSocketFactory extends ServerSocketFactory {
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new NoDelayServerSocket();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            return createServerSocket(port, 50, null);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            return createServerSocket(port, backlog, null);
+        }
+
+        /**
+         * Binds like the server sockets of {@link ServerSocketFactory#getDefault()}, a null address is any address.
+         */
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+            var socket = new NoDelayServerSocket();
+            try {
+                socket.bind(new InetSocketAddress(address, port), backlog);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            return socket;
+        }
+    }
+
+    private static final class NoDelayServerSocket extends ServerSocket {
+        NoDelayServerSocket() throws IOException {
+            super();
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            var socket = super.accept();
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+    }
+
+    private static String await(CompletableFuture<String> future) throws Exception {
+        try {
+            return future.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+}
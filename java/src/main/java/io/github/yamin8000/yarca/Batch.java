@@ -0,0 +1,205 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * <h1>Batch</h1>
+ * Executes a collection of calls with at most a given number of them in flight, and reports them together.
+ * <p>
+ * The calls are started in order, each time a call completes the next one is started from its network thread, so
+ * neither the calls nor their completions hop to the callback executor. Only the aggregated result and the progress
+ * are delivered there, and the progress is coalesced: while a progress update is pending on the executor, the next
+ * ones are merged into it, so a batch of hundreds of calls doesn't flood the main thread.
+ * <p>
+ * In fail-fast mode, which is the default, the first failure cancels the calls in flight and the calls that weren't
+ * started yet, which are never sent. In collect-all mode every call is executed regardless of the others.
+ * A response that isn't successful is a response, not a failure, like in {@link Call}.
+ *
+ * @param <T> Successful response body type.
+ */
+public final class Batch<T> {
+
+    private final List<CallX<T>> calls;
+    private final int parallelism;
+    private boolean isFailFast = true;
+    @Nullable
+    private BiConsumer<Integer, Integer> onProgress;
+
+    private final AtomicReferenceArray<Response<T>> responses;
+    private final AtomicReferenceArray<Throwable> failures;
+    //index of the next call to start, it's set to the size once the batch is stopped
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    //number of requested starts, the thread that raises it from 0 starts the calls
+    private final AtomicInteger pendingStarts = new AtomicInteger();
+    private final AtomicBoolean executed = new AtomicBoolean();
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private final AtomicBoolean isCompleted = new AtomicBoolean();
+    private final AtomicBoolean isProgressPending = new AtomicBoolean();
+    private volatile Executor callbackExecutor;
+    private volatile BiConsumer<List<@Nullable Response<T>>, List<@Nullable Throwable>> onComplete;
+
+    Batch(@NotNull Collection<? extends CallX<T>> calls, int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism < 1");
+        this.calls = new ArrayList<>(calls);
+        this.parallelism = parallelism;
+        this.responses = new AtomicReferenceArray<>(this.calls.size());
+        this.failures = new AtomicReferenceArray<>(this.calls.size());
+    }
+
+    /**
+     * @param isFailFast Whether the first failure cancels the other calls, or every call is executed.
+     * @return This batch.
+     */
+    @NotNull
+    public Batch<T> withFailFast(boolean isFailFast) {
+        this.isFailFast = isFailFast;
+        return this;
+    }
+
+    /**
+     * @param onProgress Called on the callback executor with the number of completed calls and the number of calls,
+     *                   coalesced, so it may skip counts, but the last count it's called with is the number of calls.
+     * @return This batch.
+     */
+    @NotNull
+    public Batch<T> withProgress(@NotNull BiConsumer<Integer, Integer> onProgress) {
+        this.onProgress = onProgress;
+        return this;
+    }
+
+    /**
+     * Starts the calls.
+     *
+     * @param callbackExecutor The executor that the progress and the result are delivered on.
+     * @param onComplete       Called once with the responses and the failures, both in the order of the calls.
+     *                         For each call either its response or its failure is set, and the other one is null.
+     *                         The calls that were never started fail with {@link CanceledException}, and the calls
+     *                         that were canceled in flight fail with the failure of their transport, usually an
+     *                         {@link java.io.IOException} with the message {@code Canceled}.
+     * @throws IllegalStateException If the batch is already started.
+     */
+    public void start(
+            @NotNull Executor callbackExecutor,
+            @NotNull BiConsumer<List<@Nullable Response<T>>, List<@Nullable Throwable>> onComplete
+    ) {
+        if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+        this.callbackExecutor = callbackExecutor;
+        this.onComplete = onComplete;
+        //empty, or canceled before it was started
+        if (completed.get() == calls.size()) {
+            complete();
+            return;
+        }
+        for (int i = 0; i < parallelism && i < calls.size(); i++) startNext();
+    }
+
+    /**
+     * Cancels the calls in flight and the calls that weren't started yet, the result is still delivered.
+     */
+    public void cancel() {
+        stop();
+    }
+
+    /**
+     * @return Whether the batch is canceled, or stopped by a failure in fail-fast mode.
+     */
+    public boolean isCanceled() {
+        return stopped.get();
+    }
+
+    /**
+     * Starts the next call, on the thread that is already starting calls if there is one. A call can complete
+     * synchronously, like a cache hit, so starting the next call from its completion would otherwise recurse.
+     */
+    private void startNext() {
+        if (pendingStarts.getAndIncrement() != 0) return;
+        var missed = 1;
+        do {
+            for (int i = 0; i < missed; i++) startOne();
+            missed = pendingStarts.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void startOne() {
+        var index = next.getAndIncrement();
+        if (index >= calls.size()) return;
+        try {
+            calls.get(index).enqueue(new Callback<>() {
+                @Override
+                public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+                    responses.set(index, response);
+                    onCallCompleted();
+                }
+
+                @Override
+                public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+                    onCallFailed(index, t);
+                }
+            });
+        } catch (Throwable t) {
+            //like an already executed call
+            onCallFailed(index, t);
+        }
+    }
+
+    private void onCallFailed(int index, @NotNull Throwable t) {
+        failures.set(index, t);
+        if (isFailFast) stop();
+        onCallCompleted();
+    }
+
+    private void onCallCompleted() {
+        if (completed.incrementAndGet() == calls.size()) complete();
+        else {
+            progress();
+            startNext();
+        }
+    }
+
+    private void stop() {
+        if (!stopped.compareAndSet(false, true)) return;
+        var started = Math.min(next.getAndSet(calls.size()), calls.size());
+        for (int i = 0; i < started; i++) calls.get(i).cancel();
+        var skipped = calls.size() - started;
+        if (skipped == 0) return;
+        for (int i = started; i < calls.size(); i++) failures.set(i, new CanceledException(null));
+        //a batch that isn't started yet completes when it's started
+        if (completed.addAndGet(skipped) == calls.size() && onComplete != null) complete();
+    }
+
+    private void progress() {
+        var onProgress = this.onProgress;
+        if (onProgress == null || !isProgressPending.compareAndSet(false, true)) return;
+        callbackExecutor.execute(() -> {
+            isProgressPending.set(false);
+            onProgress.accept(completed.get(), calls.size());
+        });
+    }
+
+    private void complete() {
+        if (!isCompleted.compareAndSet(false, true)) return;
+        progress();
+        var responses = new ArrayList<@Nullable Response<T>>(calls.size());
+        var failures = new ArrayList<@Nullable Throwable>(calls.size());
+        for (int i = 0; i < calls.size(); i++) {
+            responses.add(this.responses.get(i));
+            failures.add(this.failures.get(i));
+        }
+        callbackExecutor.execute(() -> onComplete.accept(responses, failures));
+    }
+}
@@ -0,0 +1,41 @@
+package io.github.yamin8000.yarca;
+
+/**
+ * A token bucket that limits extra work, like hedges, to a ratio of the normal work.
+ * <p>
+ * Every normal request deposits {@code ratio} tokens up to {@code maxTokens} and every extra request
+ * withdraws a whole token, so in the long run the extra requests are at most {@code ratio} of the normal ones,
+ * with bursts of at most {@code maxTokens}.
+ */
+final class Budget {
+
+    private final double ratio;
+    private final double maxTokens;
+    private double tokens;
+
+    /**
+     * @param ratio     Tokens deposited by each normal request, for example 0.1 for 10%.
+     * @param maxTokens Maximum tokens in the bucket, the bucket starts full.
+     */
+    Budget(double ratio, int maxTokens) {
+        if (ratio < 0) throw new IllegalArgumentException("ratio < 0");
+        if (maxTokens < 0) throw new IllegalArgumentException("maxTokens < 0");
+        this.ratio = ratio;
+        this.maxTokens = maxTokens;
+        this.tokens = maxTokens;
+    }
+
+    synchronized void deposit() {
+        tokens = Math.min(maxTokens, tokens + ratio);
+    }
+
+    synchronized boolean tryWithdraw() {
+        if (tokens < 1) return false;
+        tokens -= 1;
+        return true;
+    }
+
+    synchronized double tokens() {
+        return tokens;
+    }
+}
@@ -0,0 +1,24 @@
+package io.github.yamin8000.yarca;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long the decoded responses of the annotated method are fresh in the {@link DecodedCache} of the factory,
+ * instead of the cache's default time to live.
+ * <p>
+ * A value of 0 keeps the method out of the cache.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CacheFor {
+
+    long value();
+
+    TimeUnit unit() default TimeUnit.SECONDS;
+}
@@ -0,0 +1,27 @@
+package io.github.yamin8000.yarca;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeout of the whole call of the annotated method, from resolving DNS to reading the response body,
+ * instead of the client's {@link okhttp3.OkHttpClient.Builder#callTimeout call timeout}.
+ * <p>
+ * Each hedge and retry of the call gets the timeout of its own.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CallTimeout {
+
+    /**
+     * @return The timeout, 0 for no timeout.
+     */
+    long value();
+
+    TimeUnit unit() default TimeUnit.MILLISECONDS;
+}
@@ -1,5 +1,6 @@
 package io.github.yamin8000.yarca;
 
+import androidx.annotation.RequiresApi;
 import androidx.lifecycle.Lifecycle;
 import androidx.lifecycle.LifecycleEventObserver;
 import androidx.lifecycle.LifecycleOwner;
@@ -7,9 +8,22 @@ import androidx.lifecycle.LifecycleOwner;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 import retrofit2.Call;
@@ -54,6 +68,9 @@ public interface CallX<T> extends Call<T> {
     /**
      * Runs a runnable after a specific {@link Lifecycle.Event} is observed by the {@link LifecycleEventObserver}
      * in the given {@link LifecycleOwner}
+     * <p>
+     * The observer is never removed, so to cancel calls on destroy use
+     * {@link #enqueueAsync(LifecycleOwner, BiConsumer)}, which shares one observer per owner.
      *
      * @param lifecycleOwner Owner of the lifecycle that event is observed in it
      * @param inputEvent     The specific event that is set to be observed
@@ -69,6 +86,236 @@ public interface CallX<T> extends Call<T> {
         });
     }
 
+    /**
+     * Executes the given calls concurrently on the given executor and waits for all of them.
+     * <p>
+     * Each call is executed with its blocking {@link Call#execute()} on its own task, so with an executor of
+     * virtual threads (see the JVM artifact's {@code VirtualThreads}) many calls can be in flight at once
+     * without a large thread pool.
+     * <br>
+     * If any call fails, the other calls are canceled and the first failure is thrown.
+     *
+     * @param calls    The calls to execute, none of them should be executed before.
+     * @param executor The executor that runs the blocking calls.
+     * @return The responses in the same order as the given calls.
+     * @throws IOException          The first failure of the calls.
+     * @throws InterruptedException If the current thread is interrupted while waiting, the calls are canceled.
+     */
+    @NotNull
+    static <T> List<Response<T>> awaitAll(
+            @NotNull Collection<? extends CallX<T>> calls,
+            @NotNull Executor executor
+    ) throws IOException, InterruptedException {
+        var list = new ArrayList<CallX<T>>(calls);
+        var responses = new AtomicReferenceArray<Response<T>>(list.size());
+        var failure = new AtomicReference<Throwable>();
+        var latch = new CountDownLatch(list.size());
+
+        for (int i = 0; i < list.size(); i++) {
+            final var index = i;
+            final var call = list.get(i);
+            try {
+                executor.execute(() -> {
+                    try {
+                        if (failure.get() == null) responses.set(index, call.execute());
+                    } catch (Throwable t) {
+                        if (failure.compareAndSet(null, t)) list.forEach(Call::cancel);
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                list.forEach(Call::cancel);
+                throw e;
+            }
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            list.forEach(Call::cancel);
+            throw e;
+        }
+
+        var t = failure.get();
+        if (t instanceof IOException) throw (IOException) t;
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        if (t != null) throw new IOException(t);
+
+        var result = new ArrayList<Response<T>>(list.size());
+        for (int i = 0; i < list.size(); i++) result.add(responses.get(i));
+        return result;
+    }
+
+    /**
+     * Creates a {@link Batch} of the given calls, which executes at most parallelism of them at once.
+     * <p>
+     * Unlike {@link #awaitAll(Collection, Executor)}, it doesn't block, and the waiting calls don't hold a thread.
+     *
+     * @param calls       The calls to execute, none of them should be executed before.
+     * @param parallelism Maximum number of the calls in flight at once.
+     * @return The batch, it's started by {@link Batch#start(Executor, BiConsumer)}.
+     */
+    @NotNull
+    static <T> Batch<T> batch(@NotNull Collection<? extends CallX<T>> calls, int parallelism) {
+        return new Batch<>(calls, parallelism);
+    }
+
+    /**
+     * Synchronously sends the request and returns its response body.
+     * <p>
+     * This method is useful when you want to get the response body without caring about the response status code or headers.
+     *
+     * @return The response body, or null if the response was not successful.
+     * @throws IOException if a problem occurred talking to the server.
+     */
+    @Nullable
+    default T executeBody() throws IOException {
+        return execute().body();
+    }
+
+    /**
+     * Decodes the elements of the response's top-level JSON array as they arrive, instead of buffering and decoding
+     * the whole body, for {@link retrofit2.http.Streaming} methods that return a collection or an array,
+     * like {@code @Streaming CallX<List<Post>>}, see {@link StreamingDecoder}.
+     * <p>
+     * The request is sent directly by retrofit's call factory, the cache, retries and the other options of the
+     * factory don't apply. {@link #cancel()} stops reading the response.
+     *
+     * @param chunkSize  Maximum number of elements passed to each call of onChunk.
+     * @param onChunk    Called with the next elements on the callback executor, in order, one chunk at a time.
+     * @param onComplete Called on the callback executor after the last chunk with null, or with the failure,
+     *                   which is an {@link retrofit2.HttpException} if the response isn't successful.
+     * @param <E>        Element type of the collection or array.
+     * @throws IllegalStateException If the method isn't streaming, or if the call is already executed.
+     */
+    <E> void stream(int chunkSize, @NotNull Consumer<List<E>> onChunk, @NotNull Consumer<@Nullable Throwable> onComplete);
+
+    /**
+     * Maps the body of the successful response of this call on the thread that completed it,
+     * before the callbacks hop to the callback executor, see {@link TransformedCall}.
+     * <p>
+     * A response that isn't successful isn't mapped, and canceling the returned call cancels this call.
+     * This call must not be executed by itself, and its options like {@link #withPriority(int)} must be set before.
+     *
+     * @param mapper Maps the body, which is null for an empty response.
+     * @param <R>    Body type of the returned call.
+     * @return A call of the mapped response, with the callback executor of this call.
+     */
+    @NotNull
+    default <R> CallX<R> map(@NotNull Function<? super T, ? extends R> mapper) {
+        return map(mapper, null);
+    }
+
+    /**
+     * Maps the body of the successful response of this call on the given executor, like a pool for computation,
+     * before the callbacks hop to the callback executor, see {@link #map(Function)}.
+     *
+     * @param mapper   Maps the body, which is null for an empty response.
+     * @param executor The executor that the mapper runs on, or null for the thread that completed this call.
+     * @param <R>      Body type of the returned call.
+     * @return A call of the mapped response, with the callback executor of this call.
+     */
+    @NotNull
+    <R> CallX<R> map(@NotNull Function<? super T, ? extends R> mapper, @Nullable Executor executor);
+
+    /**
+     * Chains a dependent call to this call, like fetching a post and then its author, without a hop to the
+     * callback executor between them, see {@link TransformedCall}.
+     * <p>
+     * The dependent call is created from the body of the successful response on the thread that completed this call,
+     * and its response is the response of the returned call. A response of this call that isn't successful
+     * is passed on instead. Canceling the returned call cancels whichever of the calls is in flight.
+     *
+     * @param next Creates the dependent call from the body, which is null for an empty response.
+     * @param <R>  Body type of the dependent call.
+     * @return A call of the dependent call's response, with the callback executor of this call.
+     */
+    @NotNull
+    <R> CallX<R> flatMap(@NotNull Function<? super T, ? extends CallX<R>> next);
+
+    /**
+     * Publishes the pages of a paginated endpoint starting from this call, see {@link Pager}.
+     * <p>
+     * The call of each next page is extracted from the response of the previous page, and up to prefetch pages
+     * are fetched ahead of the subscriber's demand, so requesting the next page rarely waits for the network.
+     * Each subscriber pages from a clone of this call. On Android, {@link Flow} requires API 30, so does this method.
+     *
+     * @param nextPage Extracts the call of the next page from the response of a page,
+     *                 or returns null after the last page.
+     * @param prefetch Number of pages that are fetched ahead of the subscriber's demand, it bounds the buffered pages.
+     * @return A publisher of the response bodies of the pages.
+     */
+    @NotNull
+    @RequiresApi(30)
+    default Flow.Publisher<T> pages(@NotNull Function<Response<T>, @Nullable CallX<T>> nextPage, int prefetch) {
+        return Pager.of(this, nextPage, prefetch);
+    }
+
+    /**
+     * Sets the priority of this call in the {@link PriorityDispatcher} of its factory, instead of the priority of
+     * its method, see {@link Priority}. Higher values are more urgent.
+     * <p>
+     * It must be called before the call is executed, and has no effect if the factory doesn't have a dispatcher.
+     * On the call of {@link #map(Function)} or {@link #flatMap(Function)}, it's the priority of the chain's calls.
+     *
+     * @param priority The priority, for example {@link Priority#LOW} for a prefetch.
+     * @return This call.
+     */
+    @NotNull
+    CallX<T> withPriority(int priority);
+
+    /**
+     * Makes the returned call the latest of the key, see {@link #switchLatest(Object, long, TimeUnit)}.
+     *
+     * @param key The key, like the name of a search box.
+     * @return A call that supersedes the call of the key that is in flight when it's started.
+     */
+    @NotNull
+    default CallX<T> switchLatest(@NotNull Object key) {
+        return switchLatest(key, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes the returned call the latest of the key, like the search of the last keystroke, see {@link SwitchedCall}.
+     * <p>
+     * Starting it cancels the call of the same key that is still in flight, and the callbacks of the async methods of
+     * the superseded call, like {@link #enqueueAsyncBody(BiConsumer)}, are never called, not even with a failure.
+     * Its {@link #enqueue(BiConsumer, BiConsumer)} and {@link #enqueue(Callback)} callbacks and its futures fail with
+     * {@link CanceledException}. A superseded call of {@link #async(boolean, Consumer, Consumer)} still requests the
+     * shutdown of the client if it's needed, but the methods whose callback decides it, like
+     * {@link #atomicAsync(BiConsumer)}, leave it to the callback of the superseding call. With a debounce window, the returned call waits for the window
+     * before it's sent, so the calls of a burst of keystrokes aren't sent at all, except for the last one.
+     * It must be the last of {@link #map(Function)} and {@link #flatMap(Function)}, streaming isn't switched,
+     * and this call must not be executed by itself.
+     *
+     * @param key      The key, like the name of a search box, compared by {@link Object#equals(Object)}.
+     * @param debounce How long the call waits before it's sent when it's enqueued, 0 for sending it right away.
+     * @param unit     Time unit of the debounce window.
+     * @return A call that supersedes the call of the key that is in flight when it's started.
+     */
+    @NotNull
+    CallX<T> switchLatest(@NotNull Object key, long debounce, @NotNull TimeUnit unit);
+
+    /**
+     * Sets the deadline of this call, which bounds it, its retries and the calls chained to it by
+     * {@link #flatMap(Function)} as a whole, see {@link Deadline}. Sharing a deadline between calls gives them one
+     * budget, like the calls that a screen needs within a second.
+     * <p>
+     * Each attempt is sent with a timeout of the remaining budget, if it's shorter than the timeout of the call,
+     * and fails fast with {@link DeadlineExceededException} without being sent once the budget is spent.
+     * A call keeps the earliest of its deadlines. It must be called before the call is executed,
+     * and has no effect on streaming. On the call of {@link #map(Function)} or {@link #flatMap(Function)}, it's the
+     * deadline of the whole chain.
+     *
+     * @param deadline The deadline, see {@link Deadline#after(long, TimeUnit)}.
+     * @return This call.
+     * @throws IllegalStateException If the call is already executed.
+     */
+    @NotNull
+    CallX<T> withDeadline(@NotNull Deadline deadline);
+
     /**
      * A lambda wrapper around {@link Call#enqueue(Callback)}
      *
@@ -90,7 +337,8 @@ public interface CallX<T> extends Call<T> {
      *                 </ul>
      *                 The callback function will/shall return a boolean value that indicates whether the shutdown of the client is needed or not:
      *                 <ul>
-     *                 <li>If the return value is true, the client will be shutdown.</li>
+     *                 <li>If the return value is true, the client will be shutdown once all the calls of the factory are done,
+     *                 see {@link CallXAdapterFactory#withIdleGracePeriod(long, java.util.concurrent.TimeUnit)}.</li>
      *                 <li>If the return value is false, the client will not be shutdown.</li>
      *                 <li>If the return value is null, the client will not be shutdown.</li>
      *                 </ul>
@@ -145,7 +393,10 @@ public interface CallX<T> extends Call<T> {
     }
 
     /**
-     * Calls {@link #enqueueAsync(BiConsumer)} and cancels the call if the lifecycle is destroyed
+     * Calls {@link #enqueueAsync(BiConsumer)} and cancels the call if the lifecycle is destroyed.
+     * <p>
+     * The call is tracked by the single observer of the owner until it completes, see {@link LifecycleCalls},
+     * and it's canceled right away if the owner is already destroyed.
      *
      * @param lifecycleOwner The owner of the lifecycle
      * @param callback       The callback function.
@@ -154,8 +405,12 @@ public interface CallX<T> extends Call<T> {
             @NotNull LifecycleOwner lifecycleOwner,
             @NotNull BiConsumer<@Nullable Response<T>, @Nullable Throwable> callback
     ) {
-        doOnEvent(lifecycleOwner, Lifecycle.Event.ON_DESTROY, this::cancel);
-        enqueueAsync(callback);
+        var calls = LifecycleCalls.of(lifecycleOwner);
+        calls.add(this);
+        enqueueAsync((response, throwable) -> {
+            calls.remove(this);
+            callback.accept(response, throwable);
+        });
     }
 
     /**
@@ -193,7 +448,7 @@ public interface CallX<T> extends Call<T> {
     }
 
     /**
-     * Calls {@link #enqueueAsync(BiConsumer)} and cancels the call if lifecycle is destroyed
+     * Calls {@link #enqueueAsync(LifecycleOwner, BiConsumer)} and returns the response body.
      *
      * @param lifecycleOwner The owner of the lifecycle
      * @param callback       The callback function.
@@ -202,8 +457,10 @@ public interface CallX<T> extends Call<T> {
             @NotNull LifecycleOwner lifecycleOwner,
             @NotNull BiConsumer<@Nullable T, @Nullable Throwable> callback
     ) {
-        doOnEvent(lifecycleOwner, Lifecycle.Event.ON_DESTROY, this::cancel);
-        enqueueAsyncBody(callback);
+        enqueueAsync(lifecycleOwner, (response, throwable) -> {
+            if (response == null) callback.accept(null, throwable);
+            else callback.accept(response.body(), throwable);
+        });
     }
 
     /**
@@ -312,4 +569,58 @@ public interface CallX<T> extends Call<T> {
             else onSuccess.accept(response);
         }, onFailure);
     }
+
+    /**
+     * Enqueues the call and returns a {@link CompletableFuture} of its response.
+     * <p>
+     * Unlike the callbacks, the future is completed on the OkHttp thread that received the response without
+     * going through the callback executor, so composing many calls with {@link CompletableFuture#thenCombine}
+     * or {@link CompletableFuture#allOf} doesn't pay for a thread handoff per call.
+     * <br>
+     * Like {@link #async(boolean, Consumer, Consumer)}, the future is completed with the response for
+     * any HTTP status code, and exceptionally for network failures or if the call is canceled.
+     * Canceling the future cancels the call.
+     * <p>
+     * On Android, {@link CompletableFuture} requires API 24, so do the methods that return it.
+     *
+     * @param executor The executor that completes the future, or null for completing it on the OkHttp thread.
+     * @return The future of the response.
+     */
+    @NotNull
+    @RequiresApi(24)
+    CompletableFuture<Response<T>> toCompletableFuture(@Nullable Executor executor);
+
+    /**
+     * Calls {@link #toCompletableFuture(Executor)} and completes the future on the OkHttp thread.
+     *
+     * @return The future of the response.
+     */
+    @NotNull
+    @RequiresApi(24)
+    default CompletableFuture<Response<T>> toCompletableFuture() {
+        return toCompletableFuture(null);
+    }
+
+    /**
+     * Same as {@link #toCompletableFuture(Executor)} but the future is completed with the response body.
+     * <p>
+     * This method is useful when you want to get the response body without caring about the response status code or headers.
+     *
+     * @param executor The executor that completes the future, or null for completing it on the OkHttp thread.
+     * @return The future of the response body.
+     */
+    @NotNull
+    @RequiresApi(24)
+    CompletableFuture<@Nullable T> toCompletableFutureBody(@Nullable Executor executor);
+
+    /**
+     * Calls {@link #toCompletableFutureBody(Executor)} and completes the future on the OkHttp thread.
+     *
+     * @return The future of the response body.
+     */
+    @NotNull
+    @RequiresApi(24)
+    default CompletableFuture<@Nullable T> toCompletableFutureBody() {
+        return toCompletableFutureBody(null);
+    }
 }
@@ -1,44 +1,279 @@
 package io.github.yamin8000.yarca;
 
+import androidx.annotation.RequiresApi;
+import androidx.lifecycle.LifecycleOwner;
+
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.reflect.GenericArrayType;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
 import okio.Timeout;
 import retrofit2.Call;
 import retrofit2.CallAdapter;
 import retrofit2.Callback;
+import retrofit2.Converter;
 import retrofit2.Response;
 import retrofit2.Retrofit;
+import retrofit2.http.Streaming;
 
 class CallXAdapterFactory extends CallAdapter.Factory {
 
     @Nullable
     private final OkHttpClient okHttpClient;
     private final Executor callbackExecutor;
+    @Nullable
+    private SingleFlight singleFlight = null;
+    @Nullable
+    private DecodedCache cache = null;
+    @Nullable
+    private SnapshotStore snapshotStore = null;
+    @Nullable
+    private HedgePolicy hedgePolicy = null;
+    @Nullable
+    private RetryPolicy retryPolicy = null;
+    @Nullable
+    private ConcurrencyLimiter concurrencyLimiter = null;
+    @Nullable
+    private CircuitBreaker circuitBreaker = null;
+    @Nullable
+    private MetricsListener metricsListener = null;
+    @Nullable
+    private PriorityDispatcher priorityDispatcher = null;
+    @Nullable
+    private ClientLifecycle lifecycle;
+    private DispatchMode dispatchMode = DispatchMode.EXECUTOR;
+    private final List<HttpUrl> warmUpUrls = new ArrayList<>();
 
     public CallXAdapterFactory() {
         this(null);
     }
 
     public CallXAdapterFactory(@Nullable OkHttpClient okHttpClient) {
-        this.okHttpClient = okHttpClient;
-        this.callbackExecutor = new Util.MainThreadExecutor();
+        this(okHttpClient, new Util.MainThreadExecutor());
     }
 
     public CallXAdapterFactory(@Nullable OkHttpClient okHttpClient, Executor callbackExecutor) {
         this.okHttpClient = okHttpClient;
         this.callbackExecutor = callbackExecutor;
+        this.lifecycle = okHttpClient == null ? null : new ClientLifecycle(okHttpClient, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Enables coalescing of identical in-flight requests, see {@link SingleFlight}.
+     * <p>
+     * Like the other options of this factory, it must be set before the factory is added to a {@link Retrofit.Builder}.
+     *
+     * @param keyHeaders Names of the request headers that identical requests must have the same values for,
+     *                   besides method and URL, for example {@code Authorization}.
+     * @return This factory.
+     */
+    public CallXAdapterFactory withSingleFlight(@NotNull String... keyHeaders) {
+        this.singleFlight = new SingleFlight(keyHeaders);
+        return this;
+    }
+
+    /**
+     * Serves {@code GET} requests from the given in-memory cache of decoded responses, see {@link DecodedCache}.
+     *
+     * @param cache The cache, it can be shared between factories, if it varies on their per-user headers.
+     * @return This factory.
+     */
+    public CallXAdapterFactory withCache(@NotNull DecodedCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Keeps the last successful body of the {@link Snapshot} methods on disk, see {@link SnapshotStore}.
+     * <p>
+     * {@link CallX#enqueueAsyncBody(BiConsumer)} of these methods, and its lifecycle variant, deliver the snapshot
+     * first, if there is one and the network hasn't responded yet, and then the fresh response.
+     * Call {@link SnapshotStore#clear()} on logout, and set its namespace to the signed-in account.
+     *
+     * @param snapshotStore The store, it can be shared between factories.
+     * @return This factory.
+     */
+    public CallXAdapterFactory withSnapshots(@NotNull SnapshotStore snapshotStore) {
+        this.snapshotStore = snapshotStore;
+        return this;
+    }
+
+    /**
+     * Hedges the idempotent requests with the given policy, see {@link HedgePolicy}.
+     *
+     * @param hedgePolicy The policy, its hedge budget is shared between the calls of this factory.
+     * @return This factory.
+     */
+    public CallXAdapterFactory withHedging(@NotNull HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+        return this;
+    }
+
+    /**
+     * Retries the transient failures of idempotent requests with the given policy, see {@link RetryPolicy}.
+     *
+     * @param retryPolicy The policy, its retry budget is shared between the calls of this factory.
+     * @return This factory.
+     */
+    public CallXAdapterFactory withRetry(@NotNull RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Limits the concurrent calls to each host with the given adaptive limiter, see {@link ConcurrencyLimiter}.
+     * <p>
+     * Each hedge and retry of a call needs a permit of its own.
+     *
+     * @param concurrencyLimiter The limiter, it can be shared between factories.
+     * @return This factory.
+     */
+    public CallXAdapterFactory withConcurrencyLimiter(@NotNull ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+        return this;
+    }
+
+    /**
+     * Fails the calls of an endpoint fast while it's down, see {@link CircuitBreaker}.
+     * <p>
+     * The circuit breaker sees every retry of a call, and a whole hedged call as a single call.
+     *
+     * @param circuitBreaker The circuit breaker, its endpoints are named like {@code GET posts/{id}}.
+     * @return This factory.
+     */
+    public CallXAdapterFactory withCircuitBreaker(@NotNull CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    /**
+     * Notifies the given listener with the timings and outcome of every CallX callback, see {@link MetricsListener}.
+     *
+     * @param metricsListener The listener, for example {@link HistogramMetrics}.
+     * @return This factory.
+     */
+    public CallXAdapterFactory withMetrics(@NotNull MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+
+    /**
+     * Releases the calls to the network in priority order under a concurrency cap, see {@link PriorityDispatcher}.
+     * <p>
+     * Calls are prioritized by {@link Priority} on their method or by {@link CallX#withPriority(int)}.
+     * Each retry of a call is queued again, a hedged call is queued once.
+     *
+     * @param priorityDispatcher The dispatcher, it can be shared between factories.
+     * @return This factory.
+     */
+    public CallXAdapterFactory withPriorityDispatcher(@NotNull PriorityDispatcher priorityDispatcher) {
+        this.priorityDispatcher = priorityDispatcher;
+        return this;
+    }
+
+    /**
+     * Sets how the callbacks reach the callback executor, see {@link DispatchMode}.
+     * <p>
+     * It applies to every callback of the calls, including the chunks of streaming calls,
+     * except {@link Call#enqueue(Callback)}, which is always called back on the thread that completed the call.
+     *
+     * @param dispatchMode The mode, by default {@link DispatchMode#EXECUTOR}.
+     * @return This factory.
+     */
+    public CallXAdapterFactory withDispatchMode(@NotNull DispatchMode dispatchMode) {
+        this.dispatchMode = dispatchMode;
+        return this;
+    }
+
+    /**
+     * Keeps the client alive for the given grace period after its last call is done, before an atomic call
+     * shuts it down, see {@link ClientLifecycle}. By default, it's shut down as soon as the last call is done.
+     *
+     * @param idleGracePeriod How long the client must stay idle before it's shut down.
+     * @param unit            Time unit of the grace period.
+     * @return This factory.
+     * @throws IllegalStateException If this factory doesn't have a client to shut down.
+     */
+    public CallXAdapterFactory withIdleGracePeriod(long idleGracePeriod, @NotNull TimeUnit unit) {
+        if (okHttpClient == null) throw new IllegalStateException("There is no OkHttpClient to shut down");
+        this.lifecycle = new ClientLifecycle(okHttpClient, idleGracePeriod, unit);
+        return this;
+    }
+
+    /**
+     * Registers hosts to warm up besides the base URL, like a CDN or an authentication server,
+     * see {@link #warmUp(Retrofit, int)}.
+     *
+     * @param urls URLs of the hosts, their warm-up requests are sent to the URLs themselves.
+     * @return This factory.
+     * @throws IllegalArgumentException If a URL isn't a valid {@code http} or {@code https} URL.
+     */
+    public CallXAdapterFactory withWarmUpUrls(@NotNull String... urls) {
+        for (var url : urls) warmUpUrls.add(HttpUrl.get(url));
+        return this;
+    }
+
+    /**
+     * Resolves the base URL of the Retrofit instance and the registered hosts, and opens connections to them
+     * in the background, so the first calls of this factory don't pay for DNS, TCP and TLS, see {@link ConnectionWarmer}.
+     * <p>
+     * The connections are opened by this factory's client and left in its pool. It doesn't work after the client
+     * is shut down, then the hosts are reported with the failure.
+     *
+     * @param retrofit           The Retrofit instance whose base URL is warmed up.
+     * @param connectionsPerHost Maximum number of connections to open to each host,
+     *                           it's bounded by the dispatcher's maximum requests per host.
+     * @return A future of the phase timings of each host, which is canceled to cancel the warm-up.
+     * @throws IllegalStateException If this factory doesn't have a client to warm up.
+     */
+    @RequiresApi(24)
+    public CompletableFuture<List<WarmUpReport>> warmUp(@NotNull Retrofit retrofit, int connectionsPerHost) {
+        if (okHttpClient == null) throw new IllegalStateException("There is no OkHttpClient to warm up");
+        var urls = new ArrayList<HttpUrl>(warmUpUrls.size() + 1);
+        urls.add(retrofit.baseUrl());
+        urls.addAll(warmUpUrls);
+        return ConnectionWarmer.warmUp(okHttpClient, urls, connectionsPerHost);
+    }
+
+    /**
+     * Waits for the outstanding calls of this factory and then shuts down its client, for example before a batch job exits.
+     * The calls that are still outstanding at the deadline are canceled.
+     *
+     * @param timeout Maximum time to wait for the outstanding calls.
+     * @param unit    Time unit of the timeout.
+     * @return Whether all the calls were done before the timeout, also true if there is no client to shut down.
+     * @throws InterruptedException If the current thread is interrupted while waiting.
+     */
+    public boolean drain(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        return lifecycle == null || lifecycle.drain(timeout, unit);
+    }
+
+    /**
+     * @return Number of the calls of this factory that are executing or whose callback hasn't returned yet,
+     * or 0 if there is no client to shut down, since calls are only counted for shutting it down.
+     */
+    public int outstandingCalls() {
+        return lifecycle == null ? 0 : lifecycle.outstanding();
     }
 
     @Override
@@ -50,19 +285,63 @@ class CallXAdapterFactory extends CallAdapter.Factory {
             throw new IllegalStateException("Call return type must be parameterized as Call<Foo> or Call<? extends Foo>");
 
         final Type responseType = getParameterUpperBound(0, (ParameterizedType) type);
-        return new CallXAdapter<>(responseType, okHttpClient, callbackExecutor);
+        return new CallXAdapter<>(responseType, annotations, retrofit);
     }
 
-    private static final class CallXAdapter<R> implements CallAdapter<R, CallX<R>> {
+    private final class CallXAdapter<R> implements CallAdapter<R, CallX<R>> {
         private final Type responseType;
+        private final String endpoint;
+        private final MethodPolicy policy;
         @Nullable
-        private final OkHttpClient okHttpClient;
-        private final Executor callbackExecutor;
+        private final Converter<ResponseBody, R> converter;
+        private final okhttp3.Call.Factory callFactory;
+        @Nullable
+        private final HedgePolicy.LatencyTracker latencyTracker;
+        @Nullable
+        private final StreamingDecoder<?> decoder;
+        @Nullable
+        private final Converter<ResponseBody, R> snapshotDecoder;
+        @Nullable
+        private final Converter<R, RequestBody> snapshotEncoder;
 
-        CallXAdapter(Type responseType, @Nullable OkHttpClient okHttpClient, Executor callbackExecutor) {
+        CallXAdapter(Type responseType, Annotation[] annotations, Retrofit retrofit) {
             this.responseType = responseType;
-            this.okHttpClient = okHttpClient;
-            this.callbackExecutor = callbackExecutor;
+            this.endpoint = Util.endpointName(annotations);
+            this.policy = MethodPolicy.of(annotations);
+            this.converter = cache == null || policy.cacheTtlNanos == 0
+                    ? null
+                    : retrofit.responseBodyConverter(responseType, annotations);
+            this.callFactory = retrofit.callFactory();
+            this.latencyTracker = hedgePolicy == null ? null : hedgePolicy.newLatencyTracker();
+            this.decoder = streamingDecoder(responseType, annotations, retrofit);
+            var hasSnapshots = snapshotStore != null && policy.snapshotVersion >= 0;
+            this.snapshotDecoder = hasSnapshots ? retrofit.responseBodyConverter(responseType, annotations) : null;
+            //throws if the converter can't encode the type, so the method fails when it's created
+            this.snapshotEncoder = hasSnapshots
+                    ? retrofit.requestBodyConverter(responseType, new Annotation[0], annotations)
+                    : null;
+        }
+
+        /**
+         * @return A decoder of the elements of the response, if the method is {@link Streaming} and returns
+         * a collection or an array, otherwise null.
+         */
+        @Nullable
+        private StreamingDecoder<?> streamingDecoder(Type responseType, Annotation[] annotations, Retrofit retrofit) {
+            var isStreaming = false;
+            for (var annotation : annotations) if (annotation instanceof Streaming) isStreaming = true;
+            if (!isStreaming) return null;
+
+            Type elementType = null;
+            if (responseType instanceof GenericArrayType)
+                elementType = ((GenericArrayType) responseType).getGenericComponentType();
+            else if (responseType instanceof Class && ((Class<?>) responseType).isArray())
+                elementType = ((Class<?>) responseType).getComponentType();
+            else if (responseType instanceof ParameterizedType && Iterable.class.isAssignableFrom(getRawType(responseType)))
+                elementType = getParameterUpperBound(0, (ParameterizedType) responseType);
+            if (elementType == null) return null;
+
+            return new StreamingDecoder<>(callFactory, retrofit.responseBodyConverter(elementType, annotations));
         }
 
         @Override
@@ -72,41 +351,104 @@ class CallXAdapterFactory extends CallAdapter.Factory {
 
         @Override
         public @NotNull CallX<R> adapt(@NotNull Call<R> call) {
-            return new MyCallXAdapter<>(call, okHttpClient, callbackExecutor);
+            call = policy.withTimeout(call);
+            if (concurrencyLimiter != null) call = concurrencyLimiter.wrap(call);
+            if (hedgePolicy != null && latencyTracker != null)
+                call = hedgePolicy.wrap(call, latencyTracker, policy.isIdempotent);
+            if (circuitBreaker != null) call = circuitBreaker.wrap(call, endpoint);
+            if (priorityDispatcher != null) call = priorityDispatcher.wrap(call, policy.priority);
+            if (retryPolicy != null) call = retryPolicy.wrap(call, policy.isIdempotent);
+            if (singleFlight != null) call = singleFlight.wrap(call, responseType);
+            if (snapshotStore != null && snapshotDecoder != null && snapshotEncoder != null)
+                call = snapshotStore.wrap(call, responseType, snapshotDecoder, snapshotEncoder, policy.snapshotVersion);
+            if (cache != null && converter != null)
+                call = cache.wrap(call, responseType, converter, callFactory, policy.cacheTtlNanos);
+            return new MyCallXAdapter<>(call, lifecycle, callbackExecutor, dispatchMode, endpoint, metricsListener, decoder);
         }
     }
 
     private static class MyCallXAdapter<T> implements CallX<T> {
-        private static final String CANCELED = " Canceled";
         private final Call<T> call;
         @Nullable
-        private final OkHttpClient okHttpClient;
+        private final ClientLifecycle lifecycle;
         private final Executor callbackExecutor;
-
-        MyCallXAdapter(Call<T> call, @Nullable OkHttpClient okHttpClient, Executor callbackExecutor) {
+        private final DispatchMode dispatchMode;
+        private final String endpoint;
+        @Nullable
+        private final MetricsListener metrics;
+        @Nullable
+        private final StreamingDecoder<?> decoder;
+        @Nullable
+        private volatile okhttp3.Call streamCall;
+        //also kept here, for the dependent calls of flatMap, which are created when the source call completes
+        @Nullable
+        private volatile Deadline deadline;
+        @Nullable
+        private volatile Integer priority;
+        //the adapter this one is derived from, whose flatMap may create the dependent calls of this chain
+        @Nullable
+        private MyCallXAdapter<?> parent;
+
+        MyCallXAdapter(
+                Call<T> call,
+                @Nullable ClientLifecycle lifecycle,
+                Executor callbackExecutor,
+                DispatchMode dispatchMode,
+                String endpoint,
+                @Nullable MetricsListener metrics,
+                @Nullable StreamingDecoder<?> decoder
+        ) {
             this.call = call;
-            this.okHttpClient = okHttpClient;
+            this.lifecycle = lifecycle;
             this.callbackExecutor = callbackExecutor;
+            this.dispatchMode = dispatchMode;
+            this.endpoint = endpoint;
+            this.metrics = metrics;
+            this.decoder = decoder;
         }
 
         @Override
         public @NotNull Response<T> execute() throws IOException {
-            return call.execute();
+            if (lifecycle == null) return call.execute();
+            lifecycle.acquire();
+            try {
+                return call.execute();
+            } finally {
+                lifecycle.release();
+            }
         }
 
+        /**
+         * Enqueues the call right away on the calling thread, and calls back on the thread that completed it,
+         * like a retrofit call without a callback executor.
+         */
         @Override
         public void enqueue(@NotNull Callback<T> callback) {
-            callbackExecutor.execute(() -> call.enqueue(callback));
+            send(new Delivery() {
+                @Override
+                @Nullable
+                Executor executor() {
+                    return null;
+                }
+
+                @Override
+                void deliver(@NotNull Call<T> call, @Nullable Response<T> response, @Nullable Throwable t) {
+                    if (response != null) callback.onResponse(MyCallXAdapter.this, response);
+                    else callback.onFailure(MyCallXAdapter.this, t);
+                }
+            });
         }
 
         @Override
         public boolean isExecuted() {
-            return call.isExecuted();
+            return call.isExecuted() || streamCall != null;
         }
 
         @Override
         public void cancel() {
             call.cancel();
+            var streamCall = this.streamCall;
+            if (streamCall != null) streamCall.cancel();
         }
 
         @Override
@@ -126,89 +468,455 @@ class CallXAdapterFactory extends CallAdapter.Factory {
 
         @Override
         public @NotNull Call<T> clone() {
-            return new MyCallXAdapter<>(call.clone(), okHttpClient, callbackExecutor);
+            return derive(call.clone(), decoder);
         }
 
         @Override
-        public void enqueue(@NotNull BiConsumer<Call<T>, Response<T>> onResponse, @NotNull BiConsumer<Call<T>, Throwable> onFailure) {
-            call.enqueue(new Callback<>() {
-                @Override
-                public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
-                    callbackExecutor.execute(() -> onResponse.accept(call, response));
+        @SuppressWarnings("unchecked")
+        public <E> void stream(int chunkSize, @NotNull Consumer<List<E>> onChunk, @NotNull Consumer<@Nullable Throwable> onComplete) {
+            if (decoder == null)
+                throw new IllegalStateException(endpoint + " must be @Streaming and return a collection or an array");
+            synchronized (this) {
+                if (isExecuted()) throw new IllegalStateException("Already executed.");
+                if (lifecycle != null) lifecycle.acquire();
+                var executor = dispatchMode == DispatchMode.DIRECT ? (Executor) Runnable::run : callbackExecutor;
+                try {
+                    streamCall = ((StreamingDecoder<E>) decoder).start(request(), executor, chunkSize, onChunk, t -> {
+                        try {
+                            onComplete.accept(t);
+                        } finally {
+                            if (lifecycle != null) lifecycle.release();
+                        }
+                    });
+                } catch (RuntimeException | Error e) {
+                    //it was never started, so it's never completed
+                    if (lifecycle != null) lifecycle.release();
+                    throw e;
+                }
+            }
+            //canceled before the stream call was set, cancel() couldn't see it
+            if (call.isCanceled()) cancel();
+        }
+
+        /**
+         * Delivers the snapshot of a {@link Snapshot} method first, if the network doesn't respond before it's read.
+         */
+        @Override
+        public void enqueueAsyncBody(@NotNull BiConsumer<@Nullable T, @Nullable Throwable> callback) {
+            var snapshotting = ForwardingCall.find(call, SnapshotStore.SnapshottingCall.class);
+            if (snapshotting == null) CallX.super.enqueueAsyncBody(callback);
+            else enqueueWithSnapshot(snapshotting, callback, null);
+        }
+
+        /**
+         * Delivers the snapshot of a {@link Snapshot} method first, like {@link #enqueueAsyncBody(BiConsumer)},
+         * and cancels the call if the lifecycle is destroyed.
+         */
+        @Override
+        public void enqueueAsyncBody(
+                @NotNull LifecycleOwner lifecycleOwner,
+                @NotNull BiConsumer<@Nullable T, @Nullable Throwable> callback
+        ) {
+            var snapshotting = ForwardingCall.find(call, SnapshotStore.SnapshottingCall.class);
+            if (snapshotting == null) {
+                CallX.super.enqueueAsyncBody(lifecycleOwner, callback);
+                return;
+            }
+            var calls = LifecycleCalls.of(lifecycleOwner);
+            calls.add(this);
+            enqueueWithSnapshot(snapshotting, callback, () -> calls.remove(this));
+        }
+
+        /**
+         * Tracks the call by the single observer of the owner until it completes, even if it's superseded,
+         * see {@link SwitchedCall}.
+         */
+        @Override
+        public void enqueueAsync(
+                @NotNull LifecycleOwner lifecycleOwner,
+                @NotNull BiConsumer<@Nullable Response<T>, @Nullable Throwable> callback
+        ) {
+            var calls = LifecycleCalls.of(lifecycleOwner);
+            calls.add(this);
+            sendAsync((response, t) -> {
+                callback.accept(response, t);
+                return false;
+            }, () -> calls.remove(this));
+        }
+
+        /**
+         * @param onFresh Runs before the fresh response is delivered, or when the call is superseded, or null.
+         */
+        @SuppressWarnings("unchecked")
+        private void enqueueWithSnapshot(
+                @NotNull SnapshotStore.SnapshottingCall<?> snapshotting,
+                @NotNull BiConsumer<@Nullable T, @Nullable Throwable> callback,
+                @Nullable Runnable onFresh
+        ) {
+            //guards the order, a snapshot is never delivered after the fresh response, or after a cancel
+            var lock = new Object();
+            var isFresh = new boolean[1];
+            snapshotting.readSnapshot(body -> {
+                Runnable delivery = () -> {
+                    synchronized (lock) {
+                        if (!isFresh[0] && !call.isCanceled()) callback.accept((T) body, null);
+                    }
+                };
+                if (dispatchMode == DispatchMode.DIRECT) delivery.run();
+                else callbackExecutor.execute(delivery);
+            });
+            sendAsync((response, t) -> {
+                synchronized (lock) {
+                    isFresh[0] = true;
                 }
+                callback.accept(response == null ? null : response.body(), t);
+                return false;
+            }, onFresh);
+        }
+
+        @Override
+        public <R> @NotNull CallX<R> map(@NotNull Function<? super T, ? extends R> mapper, @Nullable Executor executor) {
+            return derive(TransformedCall.<T, R>map(call, mapper, executor), null);
+        }
 
+        @Override
+        public <R> @NotNull CallX<R> flatMap(@NotNull Function<? super T, ? extends CallX<R>> next) {
+            //the adapter of the chain, which is only created after its call
+            var chain = new AtomicReference<MyCallXAdapter<R>>();
+            var chained = TransformedCall.<T, R>flatMap(call, body -> {
+                var dependent = next.apply(body);
+                if (dependent != null) chain.get().configure(dependent);
+                return dependent;
+            });
+            var derived = derive(chained, null);
+            chain.set(derived);
+            return derived;
+        }
+
+        /**
+         * @return An adapter of the given call with the settings, the deadline and the priority of this adapter.
+         */
+        @NotNull
+        private <R> MyCallXAdapter<R> derive(@NotNull Call<R> call, @Nullable StreamingDecoder<?> decoder) {
+            var derived = new MyCallXAdapter<>(call, lifecycle, callbackExecutor, dispatchMode, endpoint, metrics, decoder);
+            derived.deadline = deadline;
+            derived.priority = priority;
+            derived.parent = this;
+            return derived;
+        }
+
+        /**
+         * Gives the dependent call of a flatMap the rest of the chain's budget, and the chain's priority.
+         */
+        private void configure(@NotNull CallX<?> dependent) {
+            var deadline = this.deadline;
+            if (deadline != null) dependent.withDeadline(deadline);
+            var priority = this.priority;
+            if (priority != null) dependent.withPriority(priority);
+        }
+
+        @Override
+        public @NotNull CallX<T> switchLatest(@NotNull Object key, long debounce, @NotNull TimeUnit unit) {
+            return derive(new SwitchedCall<>(call, key, unit.toNanos(debounce)), null);
+        }
+
+        /**
+         * Sets the deadline of the first call of the chain, the dependent calls of flatMap get it when they're created.
+         */
+        @Override
+        public @NotNull CallX<T> withDeadline(@NotNull Deadline deadline) {
+            if (call.isExecuted()) throw new IllegalStateException("Already executed.");
+            var timed = TransformedCall.findInSource(call, MethodPolicy.TimeoutCall.class);
+            if (timed == null) throw new IllegalStateException("The call doesn't support deadlines.");
+            for (MyCallXAdapter<?> stage = this; stage != null; stage = stage.parent) {
+                var current = stage.deadline;
+                if (current == null || deadline.isBefore(current)) stage.deadline = deadline;
+            }
+            timed.setDeadline(deadline);
+            return this;
+        }
+
+        /**
+         * Sets the priority of the first call of the chain, the dependent calls of flatMap get it when they're created.
+         */
+        @Override
+        public @NotNull CallX<T> withPriority(int priority) {
+            for (MyCallXAdapter<?> stage = this; stage != null; stage = stage.parent) stage.priority = priority;
+            var prioritized = TransformedCall.findInSource(call, PriorityDispatcher.PrioritizedCall.class);
+            if (prioritized != null) prioritized.setPriority(priority);
+            return this;
+        }
+
+        @Override
+        public void enqueue(@NotNull BiConsumer<Call<T>, Response<T>> onResponse, @NotNull BiConsumer<Call<T>, Throwable> onFailure) {
+            send(new Delivery() {
                 @Override
-                public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
-                    callbackExecutor.execute(() -> onFailure.accept(call, t));
+                void deliver(@NotNull Call<T> call, @Nullable Response<T> response, @Nullable Throwable t) {
+                    if (response != null) onResponse.accept(call, response);
+                    else onFailure.accept(call, t);
                 }
             });
         }
 
         @Override
         public void async(@NotNull BiFunction<Response<T>, Throwable, Boolean> callback) {
-            call.enqueue(new Callback<>() {
+            sendAsync(callback, null);
+        }
+
+        /**
+         * @param onDone Runs before the callback, or instead of it when the call is superseded, or null.
+         */
+        private void sendAsync(@NotNull BiFunction<Response<T>, Throwable, Boolean> callback, @Nullable Runnable onDone) {
+            send(new Delivery() {
                 @Override
-                public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
-                    callbackExecutor.execute(() -> {
-                        var isShutdownNeeded = false;
+                void deliver(@NotNull Call<T> call, @Nullable Response<T> response, @Nullable Throwable t) {
+                    if (onDone != null) onDone.run();
+                    boolean isShutdownNeeded;
 
-                        if (call.isCanceled())
-                            isShutdownNeeded = callback.apply(null, new IOException(request() + CANCELED));
-                        else isShutdownNeeded = callback.apply(response, null);
+                    if (response == null) isShutdownNeeded = callback.apply(null, t);
+                    else if (call.isCanceled())
+                        isShutdownNeeded = callback.apply(null, new CanceledException(request()));
+                    else isShutdownNeeded = callback.apply(response, null);
 
-                        if (isShutdownNeeded) shutdown(okHttpClient);
-                    });
+                    if (isShutdownNeeded) requestShutdown();
                 }
 
                 @Override
-                public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
-                    callbackExecutor.execute(() -> {
-                        var isShutdownNeeded = false;
-
-                        isShutdownNeeded = callback.apply(null, t);
+                boolean isDroppedIfSuperseded() {
+                    return true;
+                }
 
-                        if (isShutdownNeeded) shutdown(okHttpClient);
-                    });
+                //the callback isn't called, so it can't ask for the shutdown, the superseding call's callback can
+                @Override
+                void superseded(@NotNull Call<T> call) {
+                    if (onDone != null) onDone.run();
                 }
             });
         }
 
         @Override
         public void async(boolean isShutdownNeeded, @NotNull Consumer<Response<T>> onSuccess, @NotNull Consumer<Throwable> onFailure) {
-            call.enqueue(new Callback<>() {
+            send(new Delivery() {
                 @Override
-                public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
-                    callbackExecutor.execute(() -> {
-                        if (call.isCanceled())
-                            onFailure.accept(new IOException(request() + CANCELED));
-                        else onSuccess.accept(response);
+                void deliver(@NotNull Call<T> call, @Nullable Response<T> response, @Nullable Throwable t) {
+                    if (response == null) onFailure.accept(t);
+                    else if (call.isCanceled()) onFailure.accept(new CanceledException(request()));
+                    else onSuccess.accept(response);
 
-                        if (isShutdownNeeded) shutdown(okHttpClient);
-                    });
+                    if (isShutdownNeeded) requestShutdown();
                 }
 
                 @Override
-                public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
-                    callbackExecutor.execute(() -> {
-                        onFailure.accept(t);
+                boolean isDroppedIfSuperseded() {
+                    return true;
+                }
 
-                        if (isShutdownNeeded) shutdown(okHttpClient);
-                    });
+                @Override
+                void superseded(@NotNull Call<T> call) {
+                    //the callbacks are dropped, like those of async(BiFunction), but the shutdown is still requested
+                    if (isShutdownNeeded) requestShutdown();
                 }
             });
         }
 
+        @Override
+        @RequiresApi(24)
+        public @NotNull CompletableFuture<Response<T>> toCompletableFuture(@Nullable Executor executor) {
+            return future(executor, response -> response);
+        }
+
+        @Override
+        @RequiresApi(24)
+        public @NotNull CompletableFuture<T> toCompletableFutureBody(@Nullable Executor executor) {
+            return future(executor, Response::body);
+        }
+
         /**
-         * By default, OkHttp uses non-daemon thread,
-         * this will prevent the JVM from exiting until they time out.
-         * so this method is used for shutting down threads manually.
+         * Enqueues the call and completes the returned future with the mapped response,
+         * on the OkHttp thread that received it or on the given executor.
+         */
+        @RequiresApi(24)
+        private <R> CompletableFuture<R> future(@Nullable Executor executor, Function<Response<T>, R> mapper) {
+            var future = new CallFuture<R>(call);
+            send(new Delivery() {
+                @Override
+                @Nullable
+                Executor executor() {
+                    return executor;
+                }
+
+                @Override
+                void deliver(@NotNull Call<T> call, @Nullable Response<T> response, @Nullable Throwable t) {
+                    if (response == null) future.completeExceptionally(t);
+                    else if (call.isCanceled()) future.completeExceptionally(new CanceledException(request()));
+                    else {
+                        try {
+                            future.complete(mapper.apply(response));
+                        } catch (RuntimeException e) {
+                            future.completeExceptionally(e);
+                        }
+                    }
+                }
+            });
+            return future;
+        }
+
+        /**
+         * Enqueues the call with the delivery, which is released from the {@link ClientLifecycle} if the call can't be
+         * enqueued, like when it's already executed, since it will never be called back.
+         */
+        private void send(@NotNull Delivery delivery) {
+            try {
+                call.enqueue(delivery);
+            } catch (RuntimeException | Error e) {
+                if (lifecycle != null) lifecycle.release();
+                throw e;
+            }
+        }
+
+        /**
+         * The callback of an enqueued call, which is also the task that delivers its outcome on the executor,
+         * so a call allocates a single small object between the adapter and the user's callback.
+         * <p>
+         * It acquires the call from the {@link ClientLifecycle} when it's created and releases it after delivering,
+         * or right away if the call can't be enqueued, see {@link #send(Delivery)},
+         * and reports the timings to the {@link MetricsListener}. The outcome fields are plain, they are written
+         * before the task is submitted to the executor, which happens-before the task runs.
+         */
+        private abstract class Delivery implements Callback<T>, Runnable {
+            //only allocated if there is a listener
+            @Nullable
+            private final Timing timing;
+            @Nullable
+            private Response<T> response;
+            @Nullable
+            private Throwable failure;
+
+            Delivery() {
+                this.timing = metrics == null ? null : new Timing();
+                if (lifecycle != null) lifecycle.acquire();
+            }
+
+            /**
+             * Delivers the outcome of the call, either the response or the failure is null.
+             */
+            abstract void deliver(@NotNull Call<T> call, @Nullable Response<T> response, @Nullable Throwable t);
+
+            /**
+             * Called instead of {@link #deliver} if the call was superseded by a later call of its key, see
+             * {@link SwitchedCall}. It's delivered as a {@link CanceledException}, so callbacks and futures complete,
+             * except for the callbacks of the async methods, which are dropped, like the results of an old search.
+             */
+            void superseded(@NotNull Call<T> call) {
+                deliver(call, null, new CanceledException(request()));
+            }
+
+            /**
+             * @return Whether {@link #superseded} drops the outcome, then it runs on the thread that received it,
+             * so the outcomes of stale searches never reach the callback executor.
+             */
+            boolean isDroppedIfSuperseded() {
+                return false;
+            }
+
+            /**
+             * @return The executor that the outcome is delivered on, or null for the thread that received it.
+             */
+            @Nullable
+            Executor executor() {
+                return dispatchMode == DispatchMode.DIRECT ? null : callbackExecutor;
+            }
+
+            @Override
+            public final void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+                this.response = response;
+                arrived();
+            }
+
+            @Override
+            public final void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+                this.failure = t;
+                arrived();
+            }
+
+            private void arrived() {
+                if (timing != null) timing.arrived(response);
+                if (isDroppedIfSuperseded() && SwitchedCall.isSuperseded(call)) {
+                    run();
+                    return;
+                }
+                var executor = executor();
+                if (executor == null) run();
+                else if (dispatchMode == DispatchMode.INLINE_IF_ON_TARGET && Util.isOnExecutorThread(executor)) run();
+                else executor.execute(this);
+            }
+
+            @Override
+            public final void run() {
+                var startedAt = timing == null ? 0 : System.nanoTime();
+                try {
+                    //the completed call is always this adapter's call, every wrapper reports itself,
+                    //and it may have been superseded while the task was waiting for the executor
+                    if (SwitchedCall.isSuperseded(call)) superseded(call);
+                    else deliver(call, response, failure);
+                } finally {
+                    finish(startedAt);
+                }
+            }
+
+            private void finish(long startedAt) {
+                if (timing != null) timing.report(startedAt);
+                if (lifecycle != null) lifecycle.release();
+            }
+        }
+
+        /**
+         * The timings of a call that are reported to the {@link MetricsListener}.
+         */
+        private final class Timing {
+            private final long enqueuedAt = System.nanoTime();
+            private long arrivedAt;
+            private MetricsListener.Outcome outcome;
+
+            void arrived(@Nullable Response<T> response) {
+                arrivedAt = System.nanoTime();
+                if (call.isCanceled()) outcome = MetricsListener.Outcome.CANCELED;
+                else if (response == null) outcome = MetricsListener.Outcome.FAILURE;
+                else if (response.isSuccessful()) outcome = MetricsListener.Outcome.SUCCESS;
+                else outcome = MetricsListener.Outcome.HTTP_ERROR;
+            }
+
+            void report(long startedAt) {
+                var now = System.nanoTime();
+                //not null, there is a timing only if there is a listener
+                metrics.onCall(endpoint, outcome, arrivedAt - enqueuedAt, startedAt - arrivedAt, now - startedAt);
+            }
+        }
+
+        /**
+         * Requests the shutdown of the client, which happens once all the calls of the factory are done.
          * <p>
          * This method is not necessary if Platform is Android.
          */
-        private void shutdown(@Nullable OkHttpClient okHttpClient) {
-            if (okHttpClient != null) {
-                okHttpClient.dispatcher().executorService().shutdown();
-                okHttpClient.connectionPool().evictAll();
+        private void requestShutdown() {
+            if (lifecycle != null) lifecycle.requestShutdown();
+        }
+
+        /**
+         * A {@link CompletableFuture} that cancels its call when it's canceled.
+         */
+        @RequiresApi(24)
+        private static final class CallFuture<R> extends CompletableFuture<R> {
+            private final Call<?> call;
+
+            CallFuture(Call<?> call) {
+                this.call = call;
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                call.cancel();
+                return super.cancel(mayInterruptIfRunning);
             }
         }
     }
@@ -0,0 +1,46 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+import okhttp3.Request;
+
+/**
+ * Thrown, or passed to the failure callback, when a call is canceled.
+ * <p>
+ * A cancellation is an expected outcome, not a bug, so it has no stack trace, and its message, which includes the
+ * request, is only built when it's read. That keeps canceling many calls, like when a screen is closed, cheap.
+ */
+public final class CanceledException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    //a request isn't serializable, a deserialized exception has the message without it
+    @Nullable
+    private final transient Request request;
+
+    CanceledException(@Nullable Request request) {
+        super();
+        this.request = request;
+    }
+
+    /**
+     * @return The request of the canceled call, or null if it's unknown.
+     */
+    @Nullable
+    public Request getRequest() {
+        return request;
+    }
+
+    @Override
+    public @NotNull String getMessage() {
+        return request == null ? "Canceled" : request + " Canceled";
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,345 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * <h1>CircuitBreaker</h1>
+ * A circuit breaker for each endpoint, that fails calls fast while the endpoint is down.
+ * <p>
+ * The outcomes of the last calls of each endpoint are kept in a sliding window. A call is a failure if it fails,
+ * except when it's canceled, rejected by the {@link ConcurrencyLimiter} or past its {@link Deadline}, or if it gets a {@code 5xx} response,
+ * and it's slow if it takes longer than the slow call duration. When the failure rate or the slow call rate of the window reaches its threshold, the circuit
+ * <b>opens</b> and calls fail right away with {@link CircuitOpenException}, without being sent and without waiting
+ * for the connect and read timeouts.
+ * <br>
+ * After the open duration the circuit is <b>half-open</b> and lets a few probe calls through. If all of them
+ * succeed in time the circuit <b>closes</b>, otherwise it opens again.
+ * <p>
+ * The state of each endpoint, rejection counter and a {@link Listener} of the state transitions are visible to the app.
+ */
+final class CircuitBreaker {
+
+    enum State {CLOSED, OPEN, HALF_OPEN}
+
+    /**
+     * Notified on the thread that completed the call which caused the transition.
+     */
+    interface Listener {
+        void onStateChanged(@NotNull String endpoint, @NotNull State from, @NotNull State to);
+    }
+
+    private final float failureRateThreshold;
+    private final float slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final int windowSize;
+    private final int minCalls;
+    private final long openNanos;
+    private final int probes;
+    @Nullable
+    private final Listener listener;
+
+    private final ConcurrentHashMap<String, EndpointCircuit> circuits = new ConcurrentHashMap<>();
+    private final AtomicLong rejections = new AtomicLong();
+
+    private CircuitBreaker(
+            float failureRateThreshold,
+            float slowCallRateThreshold,
+            long slowCallNanos,
+            int windowSize,
+            int minCalls,
+            long openNanos,
+            int probes,
+            @Nullable Listener listener
+    ) {
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = slowCallNanos;
+        this.windowSize = windowSize;
+        this.minCalls = minCalls;
+        this.openNanos = openNanos;
+        this.probes = probes;
+        this.listener = listener;
+    }
+
+    /**
+     * Creates a circuit breaker with a window of the last 100 calls, that isn't tripped before 10 calls,
+     * lets 3 probe calls through when it's half-open, and doesn't consider slow calls.
+     *
+     * @param failureRateThreshold Failure rate that opens the circuit, between 0 and 1.
+     * @param openDuration         How long the circuit stays open before letting probe calls through.
+     * @param unit                 Time unit of the open duration.
+     */
+    static CircuitBreaker of(float failureRateThreshold, long openDuration, @NotNull TimeUnit unit) {
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1)
+            throw new IllegalArgumentException("failureRateThreshold must be in (0, 1]");
+        return new CircuitBreaker(failureRateThreshold, 2, Long.MAX_VALUE, 100, 10, unit.toNanos(openDuration), 3, null);
+    }
+
+    /**
+     * @param slowCallRateThreshold Slow call rate that opens the circuit, between 0 and 1.
+     * @param slowCallDuration      Calls that take longer than this are slow.
+     * @param unit                  Time unit of the slow call duration.
+     * @return A copy of this circuit breaker that also trips on slow calls.
+     */
+    CircuitBreaker withSlowCalls(float slowCallRateThreshold, long slowCallDuration, @NotNull TimeUnit unit) {
+        if (slowCallRateThreshold <= 0 || slowCallRateThreshold > 1)
+            throw new IllegalArgumentException("slowCallRateThreshold must be in (0, 1]");
+        return new CircuitBreaker(failureRateThreshold, slowCallRateThreshold, unit.toNanos(slowCallDuration),
+                windowSize, minCalls, openNanos, probes, listener);
+    }
+
+    /**
+     * @param windowSize Number of the last calls that the rates are computed from.
+     * @param minCalls   Minimum calls in the window before the circuit can open.
+     * @return A copy of this circuit breaker with the given window.
+     */
+    CircuitBreaker withWindow(int windowSize, int minCalls) {
+        if (minCalls < 1 || windowSize < minCalls) throw new IllegalArgumentException("1 <= minCalls <= windowSize");
+        return new CircuitBreaker(failureRateThreshold, slowCallRateThreshold, slowCallNanos,
+                windowSize, minCalls, openNanos, probes, listener);
+    }
+
+    /**
+     * @param probes Number of calls let through when the circuit is half-open.
+     * @return A copy of this circuit breaker with the given number of probe calls.
+     */
+    CircuitBreaker withProbes(int probes) {
+        if (probes < 1) throw new IllegalArgumentException("probes < 1");
+        return new CircuitBreaker(failureRateThreshold, slowCallRateThreshold, slowCallNanos,
+                windowSize, minCalls, openNanos, probes, listener);
+    }
+
+    /**
+     * @param listener Listener of the state transitions of all endpoints.
+     * @return A copy of this circuit breaker with the given listener.
+     */
+    CircuitBreaker withListener(@Nullable Listener listener) {
+        return new CircuitBreaker(failureRateThreshold, slowCallRateThreshold, slowCallNanos,
+                windowSize, minCalls, openNanos, probes, listener);
+    }
+
+    <T> @NotNull Call<T> wrap(@NotNull Call<T> call, @NotNull String endpoint) {
+        return new BreakerCall<>(call, circuit(endpoint));
+    }
+
+    @NotNull
+    State state(@NotNull String endpoint) {
+        var circuit = circuits.get(endpoint);
+        return circuit == null ? State.CLOSED : circuit.state();
+    }
+
+    /**
+     * @return Failure rate of the endpoint's current window, between 0 and 1.
+     */
+    float failureRate(@NotNull String endpoint) {
+        var circuit = circuits.get(endpoint);
+        return circuit == null ? 0 : circuit.failureRate();
+    }
+
+    /**
+     * @return The endpoints that have a circuit.
+     */
+    @NotNull
+    Set<String> endpoints() {
+        return circuits.keySet();
+    }
+
+    /**
+     * @return Number of calls that failed fast because their circuit was open, on all endpoints.
+     */
+    long rejectionCount() {
+        return rejections.get();
+    }
+
+    private EndpointCircuit circuit(@NotNull String endpoint) {
+        return circuits.computeIfAbsent(endpoint, EndpointCircuit::new);
+    }
+
+    private final class EndpointCircuit {
+        private static final byte FAILED = 1;
+        private static final byte SLOW = 2;
+
+        private final String endpoint;
+        private final byte[] window = new byte[windowSize];
+        private int next = 0;
+        private int calls = 0;
+        private int failures = 0;
+        private int slowCalls = 0;
+
+        private State state = State.CLOSED;
+        private long openedAt = 0;
+        private int probesStarted = 0;
+        private int probesSucceeded = 0;
+
+        EndpointCircuit(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        synchronized State state() {
+            return state;
+        }
+
+        synchronized float failureRate() {
+            return calls == 0 ? 0 : (float) failures / calls;
+        }
+
+        boolean tryAcquire() {
+            var isHalfOpened = false;
+            synchronized (this) {
+                if (state == State.OPEN) {
+                    if (System.nanoTime() - openedAt < openNanos) return false;
+                    state = State.HALF_OPEN;
+                    probesStarted = 0;
+                    probesSucceeded = 0;
+                    isHalfOpened = true;
+                }
+                if (state == State.HALF_OPEN) {
+                    if (probesStarted >= probes) return false;
+                    probesStarted++;
+                }
+            }
+            if (isHalfOpened) notifyListener(State.OPEN, State.HALF_OPEN);
+            return true;
+        }
+
+        void onResult(long latencyNanos, boolean isFailure) {
+            var outcome = (byte) ((isFailure ? FAILED : 0) | (latencyNanos > slowCallNanos ? SLOW : 0));
+            State from;
+            State to;
+            synchronized (this) {
+                from = state;
+                if (state == State.HALF_OPEN) {
+                    if (outcome != 0) open();
+                    else if (++probesSucceeded >= probes) close();
+                } else if (state == State.CLOSED) {
+                    record(outcome);
+                    if (calls >= minCalls && (failures >= failureRateThreshold * calls || slowCalls >= slowCallRateThreshold * calls))
+                        open();
+                }
+                to = state;
+            }
+            if (from != to) notifyListener(from, to);
+        }
+
+        /**
+         * Called for canceled calls, which are neither a success nor a failure.
+         */
+        synchronized void onIgnored() {
+            if (state == State.HALF_OPEN && probesStarted > 0) probesStarted--;
+        }
+
+        private void record(byte outcome) {
+            if (calls == window.length) {
+                var evicted = window[next];
+                if ((evicted & FAILED) != 0) failures--;
+                if ((evicted & SLOW) != 0) slowCalls--;
+            } else calls++;
+            window[next] = outcome;
+            next = (next + 1) % window.length;
+            if ((outcome & FAILED) != 0) failures++;
+            if ((outcome & SLOW) != 0) slowCalls++;
+        }
+
+        private void open() {
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+
+        private void close() {
+            state = State.CLOSED;
+            next = 0;
+            calls = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+
+        private void notifyListener(@NotNull State from, @NotNull State to) {
+            if (listener != null) listener.onStateChanged(endpoint, from, to);
+        }
+    }
+
+    private final class BreakerCall<T> extends ForwardingCall<T> {
+        private final EndpointCircuit circuit;
+        private final AtomicBoolean executed = new AtomicBoolean();
+
+        BreakerCall(Call<T> delegate, EndpointCircuit circuit) {
+            super(delegate);
+            this.circuit = circuit;
+        }
+
+        @Override
+        public @NotNull Response<T> execute() throws IOException {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            if (!circuit.tryAcquire()) throw reject();
+
+            var start = System.nanoTime();
+            Response<T> response;
+            try {
+                response = delegate.execute();
+            } catch (IOException | RuntimeException e) {
+                onFailure(start, e);
+                throw e;
+            }
+            circuit.onResult(System.nanoTime() - start, response.code() >= 500);
+            return response;
+        }
+
+        @Override
+        public void enqueue(@NotNull Callback<T> callback) {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            if (!circuit.tryAcquire()) {
+                callback.onFailure(this, reject());
+                return;
+            }
+
+            var start = System.nanoTime();
+            delegate.enqueue(new Callback<>() {
+                @Override
+                public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+                    circuit.onResult(System.nanoTime() - start, response.code() >= 500);
+                    callback.onResponse(BreakerCall.this, response);
+                }
+
+                @Override
+                public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+                    BreakerCall.this.onFailure(start, t);
+                    callback.onFailure(BreakerCall.this, t);
+                }
+            });
+        }
+
+        private void onFailure(long start, @NotNull Throwable t) {
+            //a call that is canceled, rejected by the limiter or out of the caller's budget says nothing about the endpoint
+            if (delegate.isCanceled() || t instanceof LimitExceededException || t instanceof DeadlineExceededException)
+                circuit.onIgnored();
+            else circuit.onResult(System.nanoTime() - start, true);
+        }
+
+        private CircuitOpenException reject() {
+            rejections.incrementAndGet();
+            return new CircuitOpenException(circuit.endpoint);
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return executed.get();
+        }
+
+        @Override
+        public @NotNull Call<T> clone() {
+            return new BreakerCall<>(delegate.clone(), circuit);
+        }
+    }
+}
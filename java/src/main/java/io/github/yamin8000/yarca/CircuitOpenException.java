@@ -0,0 +1,25 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a call fails fast without being sent, because the {@link CircuitBreaker} of its endpoint is open.
+ */
+public final class CircuitOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String endpoint;
+
+    CircuitOpenException(@NotNull String endpoint) {
+        super("Circuit breaker is open for " + endpoint);
+        this.endpoint = endpoint;
+    }
+
+    @NotNull
+    public String getEndpoint() {
+        return endpoint;
+    }
+}
@@ -0,0 +1,124 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * <h1>ClientLifecycle</h1>
+ * Shuts down the {@link OkHttpClient} of a {@link CallXAdapterFactory} once all of its calls are done.
+ * <p>
+ * Every CallX call is counted from when it's executed or enqueued until its callback has returned. An atomic call
+ * only requests the shutdown, the dispatcher's threads are shut down and the idle connections are evicted after
+ * the last outstanding call drains and no new call is started for the idle grace period. So other calls in flight
+ * aren't failed, and a process that keeps calling keeps its warm connections.
+ * <p>
+ * {@link #drain(long, TimeUnit)} shuts down as soon as the outstanding calls drain, and cancels them at the deadline.
+ */
+final class ClientLifecycle {
+
+    private final OkHttpClient client;
+    private final long idleGraceNanos;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private int outstanding = 0;
+    private boolean isShutdownRequested = false;
+    private boolean isDraining = false;
+    @Nullable
+    private ScheduledFuture<?> idleTimer;
+
+    /**
+     * @param client          The client that is shut down.
+     * @param idleGracePeriod How long the client must stay idle after the last call before it's shut down.
+     * @param unit            Time unit of the grace period.
+     */
+    ClientLifecycle(@NotNull OkHttpClient client, long idleGracePeriod, @NotNull TimeUnit unit) {
+        if (idleGracePeriod < 0) throw new IllegalArgumentException("idleGracePeriod < 0");
+        this.client = client;
+        this.idleGraceNanos = unit.toNanos(idleGracePeriod);
+    }
+
+    synchronized void acquire() {
+        outstanding++;
+        cancelIdleTimer();
+    }
+
+    synchronized void release() {
+        if (--outstanding == 0 && isShutdownRequested) scheduleShutdown();
+    }
+
+    /**
+     * Shuts down the client once all the outstanding calls are done, it's idempotent.
+     */
+    synchronized void requestShutdown() {
+        isShutdownRequested = true;
+        if (outstanding == 0 && idleTimer == null) scheduleShutdown();
+    }
+
+    /**
+     * Shuts down the client as soon as the outstanding calls are done, without the grace period,
+     * or cancels them and shuts it down right away when the timeout elapses.
+     *
+     * @param timeout Maximum time to wait for the outstanding calls.
+     * @param unit    Time unit of the timeout.
+     * @return Whether all the calls were done before the timeout.
+     * @throws InterruptedException If the current thread is interrupted while waiting, the client is left as is.
+     */
+    boolean drain(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        synchronized (this) {
+            isShutdownRequested = true;
+            isDraining = true;
+            if (outstanding == 0) {
+                cancelIdleTimer();
+                shutdown();
+            }
+        }
+        if (terminated.await(timeout, unit)) return true;
+        client.dispatcher().cancelAll();
+        synchronized (this) {
+            shutdown();
+        }
+        return false;
+    }
+
+    synchronized int outstanding() {
+        return outstanding;
+    }
+
+    boolean isShutdown() {
+        return terminated.getCount() == 0;
+    }
+
+    private void scheduleShutdown() {
+        if (isDraining || idleGraceNanos == 0) shutdown();
+        else idleTimer = Util.scheduler().schedule(this::onIdle, idleGraceNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void onIdle() {
+        //a call may have started after the timer fired, then it's rescheduled when that call is released
+        idleTimer = null;
+        if (outstanding == 0) shutdown();
+    }
+
+    private void cancelIdleTimer() {
+        var timer = idleTimer;
+        if (timer != null) timer.cancel(false);
+        idleTimer = null;
+    }
+
+    /**
+     * By default, OkHttp uses non-daemon threads, which prevent the JVM from exiting until they time out,
+     * so they are shut down manually. This is not necessary if the platform is Android.
+     */
+    private void shutdown() {
+        if (isShutdown()) return;
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        terminated.countDown();
+    }
+}
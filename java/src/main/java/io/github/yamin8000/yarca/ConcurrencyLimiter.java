@@ -0,0 +1,302 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * <h1>ConcurrencyLimiter</h1>
+ * An adaptive limit of the concurrent calls to each host.
+ * <p>
+ * Unlike the static {@link okhttp3.Dispatcher#setMaxRequestsPerHost(int)}, the limit of each host is adjusted
+ * with AIMD: it grows additively while calls succeed at about the best latency observed for the host, and shrinks
+ * multiplicatively when a call fails, gets a {@code 5xx}/{@code 429} response, or takes more than twice the best
+ * latency. So when the upstream degrades, fewer calls are let through instead of queueing without bound.
+ * <p>
+ * When the limit is reached, a call waits in a queue for at most the queue timeout, or is rejected right away
+ * if the timeout is zero. Rejected calls fail with {@link LimitExceededException} without being sent.
+ * Queued calls don't hold a thread and are cheap to cancel.
+ */
+final class ConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final int LATENCY_WINDOW = 256;
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long queueTimeoutNanos;
+    private final ConcurrentHashMap<String, HostLimit> hosts = new ConcurrentHashMap<>();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * @param initialLimit Limit of a host before any call to it is measured.
+     * @param minLimit     The limit never goes below this.
+     * @param maxLimit     The limit never goes above this.
+     * @param queueTimeout How long a call may wait for the limit, zero for rejecting it right away.
+     * @param unit         Time unit of the queue timeout.
+     */
+    ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long queueTimeout, @NotNull TimeUnit unit) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit)
+            throw new IllegalArgumentException("1 <= minLimit <= initialLimit <= maxLimit");
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.queueTimeoutNanos = unit.toNanos(queueTimeout);
+    }
+
+    <T> @NotNull Call<T> wrap(@NotNull Call<T> call) {
+        return new LimitedCall<>(call);
+    }
+
+    /**
+     * @return The current concurrency limit of the host.
+     */
+    int limit(@NotNull String host) {
+        var hostLimit = hosts.get(host);
+        return hostLimit == null ? initialLimit : hostLimit.limit();
+    }
+
+    /**
+     * @return Number of calls to the host that are in flight.
+     */
+    int inFlight(@NotNull String host) {
+        var hostLimit = hosts.get(host);
+        return hostLimit == null ? 0 : hostLimit.inFlight();
+    }
+
+    /**
+     * @return Number of calls that are rejected, on all hosts.
+     */
+    long rejectionCount() {
+        return rejections.get();
+    }
+
+    private HostLimit host(@NotNull String host) {
+        return hosts.computeIfAbsent(host, HostLimit::new);
+    }
+
+    private final class HostLimit {
+        private final String host;
+        private double limit = initialLimit;
+        private int inFlight = 0;
+        private final ArrayDeque<Runnable> waiters = new ArrayDeque<>();
+        private long minLatency = Long.MAX_VALUE;
+        private long windowMinLatency = Long.MAX_VALUE;
+        private int samples = 0;
+
+        HostLimit(String host) {
+            this.host = host;
+        }
+
+        synchronized int limit() {
+            return (int) limit;
+        }
+
+        synchronized int inFlight() {
+            return inFlight;
+        }
+
+        synchronized boolean tryAcquire() {
+            if (inFlight >= (int) limit) return false;
+            inFlight++;
+            return true;
+        }
+
+        /**
+         * Acquires a permit, or queues the waiter which is run once a permit is acquired for it.
+         */
+        synchronized boolean tryAcquireOrQueue(@NotNull Runnable waiter) {
+            if (tryAcquire()) return true;
+            waiters.add(waiter);
+            return false;
+        }
+
+        synchronized boolean removeWaiter(@NotNull Runnable waiter) {
+            return waiters.remove(waiter);
+        }
+
+        /**
+         * Releases a permit and hands the freed permits to the waiters.
+         *
+         * @param latencyNanos Latency of the call, or a negative value if it shouldn't be measured.
+         * @param isError      Whether the call failed or got an overload response.
+         */
+        void release(long latencyNanos, boolean isError) {
+            List<Runnable> ready = null;
+            synchronized (this) {
+                inFlight--;
+                if (latencyNanos >= 0) update(latencyNanos, isError);
+                while (!waiters.isEmpty() && inFlight < (int) limit) {
+                    inFlight++;
+                    if (ready == null) ready = new ArrayList<>();
+                    ready.add(waiters.poll());
+                }
+            }
+            if (ready != null) for (var waiter : ready) waiter.run();
+        }
+
+        private void update(long latencyNanos, boolean isError) {
+            windowMinLatency = Math.min(windowMinLatency, latencyNanos);
+            minLatency = Math.min(minLatency, latencyNanos);
+            //the best latency is re-measured every window, so it follows the upstream when it changes
+            if (++samples % LATENCY_WINDOW == 0) {
+                minLatency = windowMinLatency;
+                windowMinLatency = Long.MAX_VALUE;
+            }
+
+            if (isError || latencyNanos > minLatency * LATENCY_TOLERANCE)
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+            else if (inFlight + 1 >= (int) limit / 2)
+                limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    private final class LimitedCall<T> extends ForwardingCall<T> {
+        private final AtomicBoolean executed = new AtomicBoolean();
+        private volatile boolean canceled = false;
+        @Nullable
+        private volatile Runnable waiter;
+        @Nullable
+        private volatile Callback<T> callback;
+
+        LimitedCall(Call<T> delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public @NotNull Response<T> execute() throws IOException {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            var hostLimit = host(delegate.request().url().host());
+            acquire(hostLimit);
+
+            var start = System.nanoTime();
+            Response<T> response;
+            try {
+                response = delegate.execute();
+            } catch (IOException | RuntimeException e) {
+                hostLimit.release(canceled ? -1 : System.nanoTime() - start, !canceled);
+                throw e;
+            }
+            hostLimit.release(System.nanoTime() - start, isOverloaded(response));
+            return response;
+        }
+
+        private void acquire(@NotNull HostLimit hostLimit) throws IOException {
+            if (hostLimit.tryAcquire()) return;
+            if (queueTimeoutNanos <= 0) throw reject(hostLimit);
+
+            var latch = new CountDownLatch(1);
+            Runnable waiter = latch::countDown;
+            if (hostLimit.tryAcquireOrQueue(waiter)) return;
+            try {
+                if (latch.await(queueTimeoutNanos, TimeUnit.NANOSECONDS)) return;
+            } catch (InterruptedException e) {
+                if (!hostLimit.removeWaiter(waiter)) hostLimit.release(-1, false);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the concurrency limit");
+            }
+            //the permit may be handed to us right after the timeout
+            if (hostLimit.removeWaiter(waiter)) throw reject(hostLimit);
+        }
+
+        @Override
+        public void enqueue(@NotNull Callback<T> callback) {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            this.callback = callback;
+            var hostLimit = host(delegate.request().url().host());
+            if (queueTimeoutNanos <= 0) {
+                if (hostLimit.tryAcquire()) start(hostLimit, callback);
+                else callback.onFailure(this, reject(hostLimit));
+                return;
+            }
+
+            var timer = new ScheduledFuture<?>[1];
+            Runnable waiter = () -> {
+                var pending = timer[0];
+                if (pending != null) pending.cancel(false);
+                if (canceled) {
+                    hostLimit.release(-1, false);
+                    callback.onFailure(this, new CanceledException(null));
+                } else start(hostLimit, callback);
+            };
+            this.waiter = waiter;
+            if (hostLimit.tryAcquireOrQueue(waiter)) {
+                start(hostLimit, callback);
+                return;
+            }
+            timer[0] = Util.scheduler().schedule(() -> {
+                if (hostLimit.removeWaiter(waiter)) callback.onFailure(this, reject(hostLimit));
+            }, queueTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void start(@NotNull HostLimit hostLimit, @NotNull Callback<T> callback) {
+            var start = System.nanoTime();
+            delegate.enqueue(new Callback<>() {
+                @Override
+                public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+                    hostLimit.release(System.nanoTime() - start, isOverloaded(response));
+                    callback.onResponse(LimitedCall.this, response);
+                }
+
+                @Override
+                public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+                    hostLimit.release(canceled ? -1 : System.nanoTime() - start, !canceled);
+                    callback.onFailure(LimitedCall.this, t);
+                }
+            });
+            if (canceled) delegate.cancel();
+        }
+
+        private LimitExceededException reject(@NotNull HostLimit hostLimit) {
+            rejections.incrementAndGet();
+            return new LimitExceededException(hostLimit.host, hostLimit.limit());
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return executed.get();
+        }
+
+        @Override
+        public void cancel() {
+            canceled = true;
+            var waiter = this.waiter;
+            var callback = this.callback;
+            //a queued call is only removed from the queue, it was never sent
+            if (waiter != null && callback != null && host(delegate.request().url().host()).removeWaiter(waiter))
+                callback.onFailure(this, new CanceledException(null));
+            else delegate.cancel();
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return canceled || delegate.isCanceled();
+        }
+
+        @Override
+        public @NotNull Call<T> clone() {
+            return new LimitedCall<>(delegate.clone());
+        }
+    }
+
+    private static boolean isOverloaded(@NotNull Response<?> response) {
+        return response.code() >= 500 || response.code() == 429;
+    }
+}
@@ -0,0 +1,322 @@
+package io.github.yamin8000.yarca;
+
+import androidx.annotation.RequiresApi;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * <h1>ConnectionWarmer</h1>
+ * Opens connections to hosts ahead of the first real calls, so these calls don't pay for DNS, TCP and TLS.
+ * <p>
+ * Each host gets a number of concurrent {@code HEAD} requests, each of them needs a connection of its own, which is
+ * left idle in the client's {@link okhttp3.ConnectionPool} once its response is closed. The requests are sent by a
+ * client that shares the pool, dispatcher and DNS of the given client, so its calls pick up the warm connections.
+ * <br>
+ * An HTTP/2 host multiplexes the requests over a single connection, and the connections are bounded by the
+ * dispatcher's maximum requests per host. The pool keeps them for its keep-alive duration, 5 minutes by default.
+ * <p>
+ * On Android, {@link CompletableFuture} requires API 24.
+ */
+@RequiresApi(24)
+final class ConnectionWarmer {
+
+    private ConnectionWarmer() {
+    }
+
+    /**
+     * @param client             The client whose pool is warmed up.
+     * @param urls               URLs of the hosts, the requests are sent to the URLs themselves.
+     * @param connectionsPerHost Number of connections to open to each host.
+     * @return A future of the reports of the hosts, in the order of the URLs, canceling it cancels the warm-up.
+     */
+    @NotNull
+    static CompletableFuture<List<WarmUpReport>> warmUp(
+            @NotNull OkHttpClient client,
+            @NotNull Collection<HttpUrl> urls,
+            int connectionsPerHost
+    ) {
+        if (connectionsPerHost < 1) throw new IllegalArgumentException("connectionsPerHost < 1");
+        var perHost = Math.min(connectionsPerHost, client.dispatcher().getMaxRequestsPerHost());
+        //the app's listener still sees the warm-up calls, like its other calls
+        var appListeners = client.eventListenerFactory();
+        var warmClient = client.newBuilder()
+                .eventListenerFactory(call -> {
+                    var listener = appListeners.create(call);
+                    var timing = call.request().tag(PhaseTiming.class);
+                    if (timing == null) return listener;
+                    timing.delegate = listener;
+                    return timing;
+                })
+                .build();
+
+        //one URL per host
+        var hosts = new LinkedHashMap<String, HttpUrl>();
+        for (var url : urls) hosts.putIfAbsent(url.scheme() + "://" + url.host() + ":" + url.port(), url);
+
+        var future = new WarmUpFuture();
+        var reports = new AtomicReferenceArray<WarmUpReport>(hosts.size());
+        var remainingHosts = new AtomicInteger(hosts.size());
+        if (hosts.isEmpty()) future.complete(List.of());
+
+        var index = 0;
+        for (var host : hosts.entrySet()) {
+            final var hostIndex = index++;
+            new HostWarmUp(host.getKey(), perHost, report -> {
+                reports.set(hostIndex, report);
+                if (remainingHosts.decrementAndGet() == 0) {
+                    var list = new ArrayList<WarmUpReport>(reports.length());
+                    for (int i = 0; i < reports.length(); i++) list.add(reports.get(i));
+                    future.complete(list);
+                }
+            }).start(warmClient, host.getValue(), future);
+        }
+        return future;
+    }
+
+    /**
+     * A {@link CompletableFuture} that cancels the warm-up calls when it's canceled.
+     */
+    private static final class WarmUpFuture extends CompletableFuture<List<WarmUpReport>> {
+        private final List<Call> calls = new ArrayList<>();
+
+        synchronized void add(@NotNull Call call) {
+            calls.add(call);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                for (var call : calls) call.cancel();
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    /**
+     * The concurrent requests to a host, and their aggregated timings.
+     */
+    private static final class HostWarmUp {
+        private final String host;
+        private final int connections;
+        private final Consumer<WarmUpReport> onDone;
+        private final List<PhaseTiming> timings = new ArrayList<>();
+        private final AtomicInteger remaining;
+        private final long startedAt = System.nanoTime();
+        @Nullable
+        private volatile Throwable failure;
+
+        HostWarmUp(@NotNull String host, int connections, @NotNull Consumer<WarmUpReport> onDone) {
+            this.host = host;
+            this.connections = connections;
+            this.onDone = onDone;
+            this.remaining = new AtomicInteger(connections);
+        }
+
+        void start(@NotNull OkHttpClient client, @NotNull HttpUrl url, @NotNull WarmUpFuture future) {
+            for (int i = 0; i < connections; i++) timings.add(new PhaseTiming());
+            for (var timing : timings) {
+                var request = new Request.Builder().url(url).head().tag(PhaseTiming.class, timing).build();
+                var call = client.newCall(request);
+                future.add(call);
+                if (future.isCancelled()) call.cancel();
+                call.enqueue(new Callback() {
+                    @Override
+                    public void onResponse(@NotNull Call call, @NotNull Response response) {
+                        //any status is fine, the connection goes back to the pool when the response is closed
+                        response.close();
+                        done();
+                    }
+
+                    @Override
+                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                        if (failure == null) failure = e;
+                        done();
+                    }
+                });
+            }
+        }
+
+        private void done() {
+            if (remaining.decrementAndGet() != 0) return;
+            int opened = 0;
+            long dns = 0, connect = 0, tls = 0;
+            for (var timing : timings) {
+                if (timing.isConnected) opened++;
+                dns = Math.max(dns, timing.dnsNanos);
+                connect = Math.max(connect, timing.connectNanos);
+                tls = Math.max(tls, timing.tlsNanos);
+            }
+            onDone.accept(new WarmUpReport(host, opened, dns, connect, tls, System.nanoTime() - startedAt, failure));
+        }
+    }
+
+    /**
+     * Times the phases of a warm-up call, each call has its own, so its fields are only written by its call.
+     * <p>
+     * Every event is forwarded to the listener of the app's client for the call.
+     */
+    private static final class PhaseTiming extends EventListener {
+        //set by the listener factory when the call is created, before any of its events
+        private EventListener delegate = EventListener.NONE;
+        private long dnsStart;
+        private long connectStart;
+        private long tlsStart;
+        private volatile long dnsNanos;
+        private volatile long connectNanos;
+        private volatile long tlsNanos;
+        private volatile boolean isConnected;
+
+        @Override
+        public void callStart(@NotNull Call call) {
+            delegate.callStart(call);
+        }
+
+        @Override
+        public void dnsStart(@NotNull Call call, @NotNull String domainName) {
+            dnsStart = System.nanoTime();
+            delegate.dnsStart(call, domainName);
+        }
+
+        @Override
+        public void dnsEnd(@NotNull Call call, @NotNull String domainName, @NotNull List<InetAddress> addresses) {
+            dnsNanos = System.nanoTime() - dnsStart;
+            delegate.dnsEnd(call, domainName, addresses);
+        }
+
+        @Override
+        public void connectStart(@NotNull Call call, @NotNull InetSocketAddress address, @NotNull Proxy proxy) {
+            connectStart = System.nanoTime();
+            delegate.connectStart(call, address, proxy);
+        }
+
+        @Override
+        public void secureConnectStart(@NotNull Call call) {
+            tlsStart = System.nanoTime();
+            delegate.secureConnectStart(call);
+        }
+
+        @Override
+        public void secureConnectEnd(@NotNull Call call, @Nullable Handshake handshake) {
+            tlsNanos = System.nanoTime() - tlsStart;
+            delegate.secureConnectEnd(call, handshake);
+        }
+
+        @Override
+        public void connectEnd(
+                @NotNull Call call,
+                @NotNull InetSocketAddress address,
+                @NotNull Proxy proxy,
+                @Nullable Protocol protocol
+        ) {
+            connectNanos = System.nanoTime() - connectStart;
+            isConnected = true;
+            delegate.connectEnd(call, address, proxy, protocol);
+        }
+
+        @Override
+        public void connectFailed(
+                @NotNull Call call,
+                @NotNull InetSocketAddress address,
+                @NotNull Proxy proxy,
+                @Nullable Protocol protocol,
+                @NotNull IOException e
+        ) {
+            delegate.connectFailed(call, address, proxy, protocol, e);
+        }
+
+        @Override
+        public void connectionAcquired(@NotNull Call call, @NotNull Connection connection) {
+            delegate.connectionAcquired(call, connection);
+        }
+
+        @Override
+        public void connectionReleased(@NotNull Call call, @NotNull Connection connection) {
+            delegate.connectionReleased(call, connection);
+        }
+
+        @Override
+        public void requestHeadersStart(@NotNull Call call) {
+            delegate.requestHeadersStart(call);
+        }
+
+        @Override
+        public void requestHeadersEnd(@NotNull Call call, @NotNull Request request) {
+            delegate.requestHeadersEnd(call, request);
+        }
+
+        @Override
+        public void requestBodyStart(@NotNull Call call) {
+            delegate.requestBodyStart(call);
+        }
+
+        @Override
+        public void requestBodyEnd(@NotNull Call call, long byteCount) {
+            delegate.requestBodyEnd(call, byteCount);
+        }
+
+        @Override
+        public void requestFailed(@NotNull Call call, @NotNull IOException e) {
+            delegate.requestFailed(call, e);
+        }
+
+        @Override
+        public void responseHeadersStart(@NotNull Call call) {
+            delegate.responseHeadersStart(call);
+        }
+
+        @Override
+        public void responseHeadersEnd(@NotNull Call call, @NotNull Response response) {
+            delegate.responseHeadersEnd(call, response);
+        }
+
+        @Override
+        public void responseBodyStart(@NotNull Call call) {
+            delegate.responseBodyStart(call);
+        }
+
+        @Override
+        public void responseBodyEnd(@NotNull Call call, long byteCount) {
+            delegate.responseBodyEnd(call, byteCount);
+        }
+
+        @Override
+        public void responseFailed(@NotNull Call call, @NotNull IOException e) {
+            delegate.responseFailed(call, e);
+        }
+
+        @Override
+        public void callEnd(@NotNull Call call) {
+            delegate.callEnd(call);
+        }
+
+        @Override
+        public void callFailed(@NotNull Call call, @NotNull IOException e) {
+            delegate.callFailed(call, e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which a call, or a group of calls, must be done, see {@link CallX#withDeadline(Deadline)}.
+ * <p>
+ * Unlike a timeout, which starts over for each call and each retry, a deadline is a single budget that is spent by
+ * all the calls that share it, like the calls of a chain and their retries. Each call is sent with a timeout of the
+ * remaining budget, and fails fast with {@link DeadlineExceededException} once it's spent.
+ * <br>
+ * It's measured with {@link System#nanoTime()}, so it isn't affected by changes of the wall clock.
+ */
+public final class Deadline {
+
+    private final long deadlineNanos;
+
+    private Deadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * @param duration The budget, from now.
+     * @param unit     Time unit of the budget.
+     * @return A deadline that expires after the given budget.
+     */
+    @NotNull
+    public static Deadline after(long duration, @NotNull TimeUnit unit) {
+        if (duration < 0) throw new IllegalArgumentException("duration < 0");
+        return new Deadline(System.nanoTime() + unit.toNanos(duration));
+    }
+
+    /**
+     * @return The remaining budget, or 0 if the deadline has expired.
+     */
+    public long remaining(@NotNull TimeUnit unit) {
+        return unit.convert(remainingNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isExpired() {
+        return remainingNanos() == 0;
+    }
+
+    /**
+     * @return Whether this deadline expires before the other one.
+     */
+    public boolean isBefore(@NotNull Deadline other) {
+        //nanoTime values are only comparable by their difference, which doesn't overflow
+        return deadlineNanos - other.deadlineNanos < 0;
+    }
+
+    long remainingNanos() {
+        return Math.max(0, deadlineNanos - System.nanoTime());
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "Deadline in " + remaining(TimeUnit.MILLISECONDS) + "ms";
+    }
+}
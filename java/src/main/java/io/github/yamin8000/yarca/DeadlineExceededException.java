@@ -0,0 +1,21 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown when the {@link Deadline} of a call is spent, either before the call is sent, then it fails fast without
+ * any I/O, or while it's in flight, then it's the timeout of the call that fired.
+ * <p>
+ * It's an {@link InterruptedIOException}, like the timeouts of OkHttp, but it's never retried.
+ */
+public final class DeadlineExceededException extends InterruptedIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    DeadlineExceededException(@Nullable Throwable cause) {
+        super("Deadline exceeded");
+        if (cause != null) initCause(cause);
+    }
+}
@@ -0,0 +1,293 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Converter;
+import retrofit2.Response;
+
+/**
+ * <h1>DecodedCache</h1>
+ * A bounded in-memory cache of already decoded responses.
+ * <p>
+ * Unlike {@link okhttp3.Cache}, a hit doesn't run the converter again, the cached {@link Response} and its
+ * decoded body are returned as is, so the body should be treated as immutable.
+ * <br>
+ * Only successful {@code GET} responses without {@code Cache-Control: no-store} are cached, keyed by their method, URL,
+ * the response type of their retrofit method and the values of the configured vary headers. A cache that is shared
+ * between users, or between factories whose clients add per-user headers, must vary on those headers, like
+ * {@code Authorization}, otherwise a user is served the responses of another.
+ * <p>
+ * Entries are fresh for the time to live given to the cache, after that they are stale for the
+ * stale-while-revalidate window: a stale entry is still returned immediately while it's revalidated in the
+ * background with {@code If-None-Match}/{@code If-Modified-Since}. After the window the entry is a miss.
+ * When the cache is full, the least recently used entry is evicted.
+ * <p>
+ * Hit, stale hit, miss and eviction counters can be used for sizing the cache.
+ */
+final class DecodedCache {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final long staleNanos;
+    private final String[] varyHeaders;
+    private final LinkedHashMap<String, CacheEntry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxEntries           Maximum number of cached responses.
+     * @param ttl                  How long an entry is fresh.
+     * @param staleWhileRevalidate How long an entry can still be served after it's expired, while being revalidated.
+     * @param unit                 Time unit of ttl and staleWhileRevalidate.
+     * @param varyHeaders          Names of the request headers whose values are part of the key besides method and URL,
+     *                             for example {@code Authorization}.
+     */
+    DecodedCache(
+            int maxEntries,
+            long ttl,
+            long staleWhileRevalidate,
+            @NotNull TimeUnit unit,
+            @NotNull String... varyHeaders
+    ) {
+        if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries <= 0");
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.staleNanos = unit.toNanos(staleWhileRevalidate);
+        this.varyHeaders = new String[varyHeaders.length];
+        for (int i = 0; i < varyHeaders.length; i++)
+            this.varyHeaders[i] = varyHeaders[i].toLowerCase(Locale.ROOT);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                var isFull = size() > DecodedCache.this.maxEntries;
+                if (isFull) evictions.incrementAndGet();
+                return isFull;
+            }
+        };
+    }
+
+    /**
+     * Wraps the given call so that it's served from this cache when possible.
+     *
+     * @param responseType Response body type of the call's retrofit method.
+     * @param converter    Converter of the method, used for decoding revalidated responses.
+     * @param callFactory  Call factory of the retrofit instance, used for sending revalidation requests.
+     * @param ttlNanos     Time to live of the method's entries, or a negative value for the cache's default.
+     */
+    <T> @NotNull Call<T> wrap(
+            @NotNull Call<T> call,
+            @NotNull Type responseType,
+            @NotNull Converter<ResponseBody, T> converter,
+            @NotNull okhttp3.Call.Factory callFactory,
+            long ttlNanos
+    ) {
+        var ttl = ttlNanos < 0 ? this.ttlNanos : ttlNanos;
+        return new CachingCall<>(call, Util.typeName(responseType), converter, callFactory, ttl);
+    }
+
+    long hitCount() {
+        return hits.get();
+    }
+
+    long staleHitCount() {
+        return staleHits.get();
+    }
+
+    long missCount() {
+        return misses.get();
+    }
+
+    long evictionCount() {
+        return evictions.get();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    @NotNull String key(@NotNull Request request, @NotNull String responseType) {
+        var builder = new StringBuilder(request.method()).append(' ').append(request.url())
+                .append(' ').append(responseType);
+        for (var name : varyHeaders)
+            builder.append('\n').append(name).append(':').append(request.headers(name));
+        return builder.toString();
+    }
+
+    @Nullable
+    private synchronized CacheEntry get(@NotNull String key, long now) {
+        var entry = entries.get(key);
+        if (entry != null && now - entry.expiresAt > staleNanos) {
+            entries.remove(key);
+            entry = null;
+        }
+        return entry;
+    }
+
+    private synchronized void put(@NotNull String key, @NotNull Response<?> response, long ttlNanos) {
+        entries.put(key, new CacheEntry(response, System.nanoTime() + ttlNanos));
+    }
+
+    private static boolean isCacheable(@NotNull Response<?> response) {
+        return response.isSuccessful() && !response.raw().cacheControl().noStore();
+    }
+
+    private static final class CacheEntry {
+        private final Response<?> response;
+        private volatile long expiresAt;
+        private final AtomicBoolean isRevalidating = new AtomicBoolean();
+
+        CacheEntry(Response<?> response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final class CachingCall<T> extends ForwardingCall<T> {
+        private final String responseType;
+        private final Converter<ResponseBody, T> converter;
+        private final okhttp3.Call.Factory callFactory;
+        private final long ttlNanos;
+        private final AtomicBoolean executed = new AtomicBoolean();
+
+        CachingCall(
+                Call<T> delegate,
+                String responseType,
+                Converter<ResponseBody, T> converter,
+                okhttp3.Call.Factory callFactory,
+                long ttlNanos
+        ) {
+            super(delegate);
+            this.responseType = responseType;
+            this.converter = converter;
+            this.callFactory = callFactory;
+            this.ttlNanos = ttlNanos;
+        }
+
+        @Override
+        public @NotNull Response<T> execute() throws IOException {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            var request = delegate.request();
+            if (!"GET".equals(request.method())) return delegate.execute();
+
+            var key = key(request, responseType);
+            var cached = lookup(key, request);
+            if (cached != null) return cached;
+
+            var response = delegate.execute();
+            if (isCacheable(response)) put(key, response, ttlNanos);
+            return response;
+        }
+
+        @Override
+        public void enqueue(@NotNull Callback<T> callback) {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            var request = delegate.request();
+            if (!"GET".equals(request.method())) {
+                delegate.enqueue(forward(callback, null));
+                return;
+            }
+
+            var key = key(request, responseType);
+            var cached = lookup(key, request);
+            if (cached != null) callback.onResponse(this, cached);
+            else delegate.enqueue(forward(callback, key));
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return executed.get();
+        }
+
+        @Override
+        public @NotNull Call<T> clone() {
+            return new CachingCall<>(delegate.clone(), responseType, converter, callFactory, ttlNanos);
+        }
+
+        /**
+         * @return The cached response or null on a miss, a stale response is revalidated in the background.
+         */
+        @SuppressWarnings("unchecked")
+        @Nullable
+        private Response<T> lookup(@NotNull String key, @NotNull Request request) {
+            var now = System.nanoTime();
+            var entry = get(key, now);
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            if (now - entry.expiresAt < 0) hits.incrementAndGet();
+            else {
+                staleHits.incrementAndGet();
+                if (entry.isRevalidating.compareAndSet(false, true)) revalidate(key, request, entry);
+            }
+            return (Response<T>) entry.response;
+        }
+
+        private void revalidate(@NotNull String key, @NotNull Request request, @NotNull CacheEntry entry) {
+            var builder = request.newBuilder();
+            var headers = entry.response.headers();
+            var eTag = headers.get("ETag");
+            if (eTag != null) builder.header("If-None-Match", eTag);
+            var lastModified = headers.get("Last-Modified");
+            if (lastModified != null) builder.header("If-Modified-Since", lastModified);
+
+            callFactory.newCall(builder.build()).enqueue(new okhttp3.Callback() {
+                @Override
+                public void onResponse(@NotNull okhttp3.Call call, @NotNull okhttp3.Response raw) {
+                    try (var body = raw.body()) {
+                        if (raw.code() == 304) entry.expiresAt = System.nanoTime() + ttlNanos;
+                        else if (raw.isSuccessful() && body != null) {
+                            var response = Response.success(converter.convert(body), raw.newBuilder().body(null).build());
+                            if (isCacheable(response)) put(key, response, ttlNanos);
+                        }
+                    } catch (IOException | RuntimeException ignored) {
+                        //the stale entry is kept until its window is over
+                    } finally {
+                        entry.isRevalidating.set(false);
+                    }
+                }
+
+                @Override
+                public void onFailure(@NotNull okhttp3.Call call, @NotNull IOException e) {
+                    entry.isRevalidating.set(false);
+                }
+            });
+        }
+
+        private Callback<T> forward(@NotNull Callback<T> callback, @Nullable String key) {
+            return new Callback<>() {
+                @Override
+                public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+                    if (key != null && isCacheable(response)) put(key, response, ttlNanos);
+                    callback.onResponse(CachingCall.this, response);
+                }
+
+                @Override
+                public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+                    callback.onFailure(CachingCall.this, t);
+                }
+            };
+        }
+    }
+}
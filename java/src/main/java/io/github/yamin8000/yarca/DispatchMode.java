@@ -0,0 +1,28 @@
+package io.github.yamin8000.yarca;
+
+/**
+ * How the callbacks of CallX calls reach the callback executor of their {@link CallXAdapterFactory},
+ * see {@link CallXAdapterFactory#withDispatchMode(DispatchMode)}.
+ */
+public enum DispatchMode {
+
+    /**
+     * Callbacks are always executed on the callback executor, it's the default.
+     */
+    EXECUTOR,
+
+    /**
+     * Callbacks are executed on the thread that completed the call, usually an OkHttp thread, without a hop.
+     * It's for JVM programs and callbacks that are thread-safe, the callback executor isn't used.
+     */
+    DIRECT,
+
+    /**
+     * Callbacks are executed right away if the call is completed on the thread of the callback executor,
+     * like a cache hit or a rejection on the main thread, and on the callback executor otherwise.
+     * <p>
+     * The thread is only known for the main thread executors of the library, for other executors it's like
+     * {@link #EXECUTOR}. An inlined callback may run before the callbacks that are already queued on the executor.
+     */
+    INLINE_IF_ON_TARGET
+}
@@ -0,0 +1,80 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+import okhttp3.Request;
+import okio.Timeout;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * A {@link Call} that forwards every method to a delegate {@link Call}.
+ * <p>
+ * It's the base of the call decorators that {@link CallXAdapterFactory.CallXAdapter} wraps around
+ * the retrofit calls, subclasses only override the methods they need to change.
+ *
+ * @param <T> Successful response body type.
+ */
+abstract class ForwardingCall<T> implements Call<T> {
+
+    protected final Call<T> delegate;
+
+    ForwardingCall(Call<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return The outermost call of the given type in the chain of forwarding calls that starts with the call,
+     * or null if there is none.
+     */
+    @Nullable
+    static <C> C find(@NotNull Call<?> call, @NotNull Class<C> type) {
+        while (!type.isInstance(call)) {
+            if (!(call instanceof ForwardingCall)) return null;
+            call = ((ForwardingCall<?>) call).delegate;
+        }
+        return type.cast(call);
+    }
+
+    @Override
+    public @NotNull Response<T> execute() throws IOException {
+        return delegate.execute();
+    }
+
+    @Override
+    public void enqueue(@NotNull Callback<T> callback) {
+        delegate.enqueue(callback);
+    }
+
+    @Override
+    public boolean isExecuted() {
+        return delegate.isExecuted();
+    }
+
+    @Override
+    public void cancel() {
+        delegate.cancel();
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return delegate.isCanceled();
+    }
+
+    @Override
+    public @NotNull Request request() {
+        return delegate.request();
+    }
+
+    @Override
+    public @NotNull Timeout timeout() {
+        return delegate.timeout();
+    }
+
+    @Override
+    public abstract @NotNull Call<T> clone();
+}
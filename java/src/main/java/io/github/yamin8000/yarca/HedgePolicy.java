@@ -0,0 +1,254 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * <h1>HedgePolicy</h1>
+ * Hedges slow requests to cut the tail latency.
+ * <p>
+ * If no response is received within the hedge delay, the call is {@link Call#clone() cloned} and a second
+ * copy is sent. The first response wins and the other copy is canceled, so the callback is notified exactly once.
+ * A failed copy doesn't fail the call while the other copy is still in flight.
+ * <br>
+ * The delay is either fixed, or a percentile of the latencies observed for the same method, in which case the
+ * fixed delay is used until there are enough samples.
+ * <p>
+ * Only idempotent methods ({@code GET}, {@code HEAD}, {@code OPTIONS}, {@code PUT}, {@code DELETE}, or as set by
+ * {@link Idempotent}) are hedged, and only async calls. Hedges are limited by a {@link Budget} shared by all the calls of the policy, so hedging
+ * can't double the load when the upstream is slow for everyone.
+ */
+final class HedgePolicy {
+
+    private static final int MIN_SAMPLES = 32;
+
+    private final long delayNanos;
+    private final double percentile;
+    private final Budget budget;
+
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong budgetRejections = new AtomicLong();
+
+    private HedgePolicy(long delayNanos, double percentile, @NotNull Budget budget) {
+        this.delayNanos = delayNanos;
+        this.percentile = percentile;
+        this.budget = budget;
+    }
+
+    /**
+     * Hedges after a fixed delay, with a budget of 10% of the requests.
+     *
+     * @param delay Delay before sending the hedge.
+     * @param unit  Time unit of the delay.
+     */
+    static HedgePolicy fixed(long delay, @NotNull TimeUnit unit) {
+        return new HedgePolicy(unit.toNanos(delay), -1, new Budget(0.1, 10));
+    }
+
+    /**
+     * Hedges after the given percentile of the observed latencies, with a budget of 10% of the requests.
+     *
+     * @param percentile   Percentile of the latencies, between 0 and 100, for example 95.
+     * @param initialDelay Delay used until enough latencies are observed.
+     * @param unit         Time unit of the initial delay.
+     */
+    static HedgePolicy percentile(double percentile, long initialDelay, @NotNull TimeUnit unit) {
+        if (percentile <= 0 || percentile > 100) throw new IllegalArgumentException("percentile must be in (0, 100]");
+        return new HedgePolicy(unit.toNanos(initialDelay), percentile, new Budget(0.1, 10));
+    }
+
+    /**
+     * @param budget Budget of the hedges, see {@link Budget}.
+     * @return A copy of this policy with the given budget.
+     */
+    HedgePolicy withBudget(@NotNull Budget budget) {
+        return new HedgePolicy(delayNanos, percentile, budget);
+    }
+
+    long hedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * @return Number of hedges whose response won over the original request.
+     */
+    long hedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return Number of hedges that weren't sent because the budget was exhausted.
+     */
+    long budgetRejectionCount() {
+        return budgetRejections.get();
+    }
+
+    @NotNull LatencyTracker newLatencyTracker() {
+        return new LatencyTracker();
+    }
+
+    /**
+     * @param isIdempotent Whether the call's method is idempotent, only those are hedged.
+     */
+    <T> @NotNull Call<T> wrap(@NotNull Call<T> call, @NotNull LatencyTracker tracker, boolean isIdempotent) {
+        return new HedgedCall<>(call, tracker, isIdempotent);
+    }
+
+    private long delayNanos(@NotNull LatencyTracker tracker) {
+        if (percentile < 0) return delayNanos;
+        var observed = tracker.percentile();
+        return observed < 0 ? delayNanos : observed;
+    }
+
+    /**
+     * Keeps the recent latencies of a method and the chosen percentile of them.
+     * <p>
+     * The percentile is recomputed every {@value MIN_SAMPLES} samples, so recording is cheap.
+     */
+    final class LatencyTracker {
+        private final long[] samples = new long[256];
+        private int count = 0;
+        private int next = 0;
+        private volatile long cached = -1;
+
+        synchronized void record(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            if (count < samples.length) count++;
+            if (count >= MIN_SAMPLES && next % MIN_SAMPLES == 0) {
+                var sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                var index = (int) Math.ceil(percentile / 100 * count) - 1;
+                cached = sorted[Math.max(0, Math.min(count - 1, index))];
+            }
+        }
+
+        /**
+         * @return The latency percentile in nanoseconds, or -1 if there are not enough samples.
+         */
+        long percentile() {
+            return cached;
+        }
+    }
+
+    private final class HedgedCall<T> extends ForwardingCall<T> {
+        private final LatencyTracker tracker;
+        private final boolean isIdempotent;
+        private final AtomicBoolean executed = new AtomicBoolean();
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final CopyOnWriteArrayList<Call<T>> attempts = new CopyOnWriteArrayList<>();
+        private volatile boolean canceled = false;
+        @Nullable
+        private volatile ScheduledFuture<?> timer;
+
+        HedgedCall(Call<T> delegate, LatencyTracker tracker, boolean isIdempotent) {
+            super(delegate);
+            this.tracker = tracker;
+            this.isIdempotent = isIdempotent;
+        }
+
+        @Override
+        public void enqueue(@NotNull Callback<T> callback) {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            var start = System.nanoTime();
+            launch(delegate, callback, start);
+            if (!isIdempotent) return;
+
+            budget.deposit();
+            timer = Util.scheduler().schedule(() -> hedge(callback, start), delayNanos(tracker), TimeUnit.NANOSECONDS);
+            if (done.get() || canceled) cancelTimer();
+        }
+
+        @Override
+        public @NotNull Response<T> execute() throws IOException {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            return delegate.execute();
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return executed.get();
+        }
+
+        @Override
+        public void cancel() {
+            canceled = true;
+            cancelTimer();
+            delegate.cancel();
+            for (var attempt : attempts) attempt.cancel();
+        }
+
+        @Override
+        public boolean isCanceled() {
+            //the losing copy, which may be the delegate, is canceled too
+            return canceled;
+        }
+
+        @Override
+        public @NotNull Call<T> clone() {
+            return new HedgedCall<>(delegate.clone(), tracker, isIdempotent);
+        }
+
+        private void hedge(@NotNull Callback<T> callback, long start) {
+            if (done.get() || canceled) return;
+            if (!budget.tryWithdraw()) {
+                budgetRejections.incrementAndGet();
+                return;
+            }
+            hedges.incrementAndGet();
+            var copy = delegate.clone();
+            launch(copy, callback, start);
+            if (done.get() || canceled) copy.cancel();
+        }
+
+        private void launch(@NotNull Call<T> attempt, @NotNull Callback<T> callback, long start) {
+            attempts.add(attempt);
+            outstanding.incrementAndGet();
+            attempt.enqueue(new Callback<>() {
+                @Override
+                public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+                    outstanding.decrementAndGet();
+                    if (!done.compareAndSet(false, true)) return;
+                    tracker.record(System.nanoTime() - start);
+                    if (attempt != delegate) hedgeWins.incrementAndGet();
+                    finish(attempt);
+                    callback.onResponse(HedgedCall.this, response);
+                }
+
+                @Override
+                public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+                    //the other copy may still succeed
+                    if (outstanding.decrementAndGet() > 0 && !canceled) return;
+                    if (!done.compareAndSet(false, true)) return;
+                    finish(attempt);
+                    callback.onFailure(HedgedCall.this, t);
+                }
+            });
+        }
+
+        private void finish(@NotNull Call<T> winner) {
+            cancelTimer();
+            for (var attempt : attempts) if (attempt != winner) attempt.cancel();
+        }
+
+        private void cancelTimer() {
+            var current = timer;
+            if (current != null) current.cancel(false);
+        }
+    }
+}
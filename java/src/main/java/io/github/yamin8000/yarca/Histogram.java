@@ -0,0 +1,108 @@
+package io.github.yamin8000.yarca;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values, like latencies in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets, each power of two is split into 8 buckets,
+ * so percentiles are accurate to about 6% of the value and recording is a few atomic increments.
+ */
+final class Histogram {
+
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int BUCKETS = (62 - 2) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    Snapshot snapshot() {
+        var counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(counts, total, total == 0 ? 0 : (double) sum.sum() / count.sum(), max.get());
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        var exponent = 63 - Long.numberOfLeadingZeros(value);
+        var subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - 2) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return The middle value of the bucket.
+     */
+    static long value(int index) {
+        if (index < SUB_BUCKETS) return index;
+        var shift = index / SUB_BUCKETS + 2 - SUB_BUCKET_BITS;
+        var lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+
+    /**
+     * A point in time copy of a {@link Histogram}.
+     */
+    static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final double mean;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, double mean, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.mean = mean;
+            this.max = max;
+        }
+
+        long count() {
+            return count;
+        }
+
+        double mean() {
+            return mean;
+        }
+
+        long max() {
+            return max;
+        }
+
+        /**
+         * @param percentile Percentile between 0 and 100, like 99.
+         * @return The value of the percentile, or 0 if there are no values.
+         */
+        long percentile(double percentile) {
+            if (count == 0) return 0;
+            var rank = (long) Math.ceil(percentile / 100 * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) return Math.min(value(i), max);
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + (long) mean + ", p50=" + percentile(50) + ", p90=" + percentile(90)
+                    + ", p99=" + percentile(99) + ", max=" + max;
+        }
+    }
+}
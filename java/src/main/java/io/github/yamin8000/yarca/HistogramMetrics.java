@@ -0,0 +1,107 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <h1>HistogramMetrics</h1>
+ * The default {@link MetricsListener}, it keeps lock-free {@link Histogram}s of the latency, queue delay and callback
+ * time, and the count of each {@link MetricsListener.Outcome}, for each endpoint.
+ * <p>
+ * {@link #snapshot(String)} gives percentiles of the endpoint's timings, in nanoseconds.
+ */
+final class HistogramMetrics implements MetricsListener {
+
+    private final ConcurrentHashMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<>();
+
+    @Override
+    public void onCall(
+            @NotNull String endpoint,
+            @NotNull Outcome outcome,
+            long latencyNanos,
+            long queueDelayNanos,
+            long callbackNanos
+    ) {
+        var metrics = endpoints.get(endpoint);
+        if (metrics == null) metrics = endpoints.computeIfAbsent(endpoint, key -> new EndpointMetrics());
+        metrics.latency.record(latencyNanos);
+        metrics.queueDelay.record(queueDelayNanos);
+        metrics.callback.record(callbackNanos);
+        metrics.outcomes[outcome.ordinal()].increment();
+    }
+
+    /**
+     * @return The endpoints that have completed at least one call.
+     */
+    @NotNull
+    Set<String> endpoints() {
+        return endpoints.keySet();
+    }
+
+    /**
+     * @return A snapshot of the endpoint's metrics, or null if it hasn't completed any call.
+     */
+    @Nullable
+    Snapshot snapshot(@NotNull String endpoint) {
+        var metrics = endpoints.get(endpoint);
+        if (metrics == null) return null;
+        return new Snapshot(
+                metrics.latency.snapshot(),
+                metrics.queueDelay.snapshot(),
+                metrics.callback.snapshot(),
+                metrics.outcomes[Outcome.SUCCESS.ordinal()].sum(),
+                metrics.outcomes[Outcome.HTTP_ERROR.ordinal()].sum(),
+                metrics.outcomes[Outcome.FAILURE.ordinal()].sum(),
+                metrics.outcomes[Outcome.CANCELED.ordinal()].sum()
+        );
+    }
+
+    private static final class EndpointMetrics {
+        private final Histogram latency = new Histogram();
+        private final Histogram queueDelay = new Histogram();
+        private final Histogram callback = new Histogram();
+        private final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+
+        EndpointMetrics() {
+            for (int i = 0; i < outcomes.length; i++) outcomes[i] = new LongAdder();
+        }
+    }
+
+    static final class Snapshot {
+        final Histogram.Snapshot latency;
+        final Histogram.Snapshot queueDelay;
+        final Histogram.Snapshot callback;
+        final long successes;
+        final long httpErrors;
+        final long failures;
+        final long cancels;
+
+        Snapshot(
+                Histogram.Snapshot latency,
+                Histogram.Snapshot queueDelay,
+                Histogram.Snapshot callback,
+                long successes,
+                long httpErrors,
+                long failures,
+                long cancels
+        ) {
+            this.latency = latency;
+            this.queueDelay = queueDelay;
+            this.callback = callback;
+            this.successes = successes;
+            this.httpErrors = httpErrors;
+            this.failures = failures;
+            this.cancels = cancels;
+        }
+
+        @Override
+        public String toString() {
+            return "latency{" + latency + "}, queueDelay{" + queueDelay + "}, callback{" + callback + "}, successes="
+                    + successes + ", httpErrors=" + httpErrors + ", failures=" + failures + ", cancels=" + cancels;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package io.github.yamin8000.yarca;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Whether sending the annotated method's request more than once has the same effect as sending it once,
+ * so it may be hedged and retried.
+ * <p>
+ * By default, only {@code GET}, {@code HEAD}, {@code OPTIONS}, {@code PUT} and {@code DELETE} are idempotent.
+ * For example, a {@code POST} with an idempotency key can be marked with {@code @Idempotent},
+ * and a {@code GET} with side effects with {@code @Idempotent(false)}.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Idempotent {
+
+    boolean value() default true;
+}
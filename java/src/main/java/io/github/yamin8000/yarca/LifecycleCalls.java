@@ -0,0 +1,91 @@
+package io.github.yamin8000.yarca;
+
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import retrofit2.Call;
+
+/**
+ * <h1>LifecycleCalls</h1>
+ * The calls in flight of a {@link LifecycleOwner}, which are canceled together when it's destroyed.
+ * <p>
+ * Each owner has a single observer, no matter how many calls it has made, and a call is removed as soon as it
+ * completes, so a long-lived screen that polls doesn't pile up observers and the completed calls they capture.
+ * <br>
+ * The registry doesn't keep the owners alive, and an owner's entry and observer are removed when it's destroyed.
+ * Like {@link Lifecycle#addObserver}, calls must be added on the main thread.
+ */
+final class LifecycleCalls implements LifecycleEventObserver {
+
+    //guarded by itself
+    private static final Map<LifecycleOwner, LifecycleCalls> REGISTRY = new WeakHashMap<>();
+
+    private final Set<Call<?>> calls = ConcurrentHashMap.newKeySet();
+    private volatile boolean isDestroyed = false;
+
+    private LifecycleCalls() {
+    }
+
+    /**
+     * @return The calls of the owner, which observes its lifecycle from the first time it's requested.
+     */
+    @NotNull
+    static LifecycleCalls of(@NotNull LifecycleOwner owner) {
+        if (owner.getLifecycle().getCurrentState() == Lifecycle.State.DESTROYED) {
+            //a destroyed lifecycle doesn't dispatch ON_DESTROY to a new observer
+            var destroyed = new LifecycleCalls();
+            destroyed.isDestroyed = true;
+            return destroyed;
+        }
+        synchronized (REGISTRY) {
+            var calls = REGISTRY.get(owner);
+            if (calls == null) {
+                calls = new LifecycleCalls();
+                REGISTRY.put(owner, calls);
+                owner.getLifecycle().addObserver(calls);
+            }
+            return calls;
+        }
+    }
+
+    /**
+     * Adds a call that is canceled when the owner is destroyed, or cancels it right away if it's already destroyed.
+     */
+    void add(@NotNull Call<?> call) {
+        calls.add(call);
+        //destroyed while it was added, it may have missed the bulk cancellation
+        if (isDestroyed && calls.remove(call)) call.cancel();
+    }
+
+    /**
+     * Removes a completed call.
+     */
+    void remove(@NotNull Call<?> call) {
+        calls.remove(call);
+    }
+
+    int size() {
+        return calls.size();
+    }
+
+    @Override
+    public void onStateChanged(@NotNull LifecycleOwner source, @NotNull Lifecycle.Event event) {
+        if (event != Lifecycle.Event.ON_DESTROY) return;
+        isDestroyed = true;
+        source.getLifecycle().removeObserver(this);
+        synchronized (REGISTRY) {
+            REGISTRY.remove(source);
+        }
+        for (var call : calls) {
+            if (calls.remove(call)) call.cancel();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a call is rejected by the {@link ConcurrencyLimiter} without being sent,
+ * because the concurrency limit of its host is reached.
+ */
+public final class LimitExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String host;
+    private final int limit;
+
+    LimitExceededException(@NotNull String host, int limit) {
+        super("Concurrency limit of " + limit + " reached for " + host);
+        this.host = host;
+        this.limit = limit;
+    }
+
+    @NotNull
+    public String getHost() {
+        return host;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
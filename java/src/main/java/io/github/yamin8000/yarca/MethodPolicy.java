@@ -0,0 +1,202 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.annotation.Annotation;
+import java.util.concurrent.TimeUnit;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * <h1>MethodPolicy</h1>
+ * The options of a retrofit method that are set by its annotations, {@link CallTimeout}, {@link CacheFor},
+ * {@link Priority}, {@link Idempotent} and {@link Snapshot}.
+ * <p>
+ * It's resolved once when the method's adapter is created, so its calls don't use reflection.
+ */
+final class MethodPolicy {
+
+    /**
+     * Timeout of the method's calls in nanoseconds, or -1 for the client's call timeout.
+     */
+    final long timeoutNanos;
+    /**
+     * Time to live of the method's cache entries in nanoseconds, -1 for the cache's default or 0 for not caching it.
+     */
+    final long cacheTtlNanos;
+    final int priority;
+    /**
+     * Whether the method's calls may be hedged and retried.
+     */
+    final boolean isIdempotent;
+    /**
+     * Version of the method's snapshots, or -1 if the method doesn't keep snapshots.
+     */
+    final int snapshotVersion;
+
+    private MethodPolicy(long timeoutNanos, long cacheTtlNanos, int priority, boolean isIdempotent, int snapshotVersion) {
+        this.timeoutNanos = timeoutNanos;
+        this.cacheTtlNanos = cacheTtlNanos;
+        this.priority = priority;
+        this.isIdempotent = isIdempotent;
+        this.snapshotVersion = snapshotVersion;
+    }
+
+    /**
+     * @param annotations Annotations of the retrofit method.
+     */
+    @NotNull
+    static MethodPolicy of(Annotation @NotNull [] annotations) {
+        long timeoutNanos = -1;
+        long cacheTtlNanos = -1;
+        int priority = Priority.NORMAL;
+        Boolean isIdempotent = null;
+        int snapshotVersion = -1;
+        for (var annotation : annotations) {
+            if (annotation instanceof CallTimeout) {
+                var timeout = (CallTimeout) annotation;
+                if (timeout.value() < 0) throw new IllegalArgumentException("@CallTimeout must not be negative");
+                timeoutNanos = timeout.unit().toNanos(timeout.value());
+            } else if (annotation instanceof CacheFor) {
+                var cacheFor = (CacheFor) annotation;
+                if (cacheFor.value() < 0) throw new IllegalArgumentException("@CacheFor must not be negative");
+                cacheTtlNanos = cacheFor.unit().toNanos(cacheFor.value());
+            } else if (annotation instanceof Priority) {
+                priority = ((Priority) annotation).value();
+            } else if (annotation instanceof Idempotent) {
+                isIdempotent = ((Idempotent) annotation).value();
+            } else if (annotation instanceof Snapshot) {
+                snapshotVersion = ((Snapshot) annotation).version();
+                if (snapshotVersion < 0) throw new IllegalArgumentException("@Snapshot version must not be negative");
+            }
+        }
+        if (isIdempotent == null) {
+            var method = Util.httpMethod(annotations);
+            isIdempotent = method != null && Util.isIdempotent(method);
+        }
+        return new MethodPolicy(timeoutNanos, cacheTtlNanos, priority, isIdempotent, snapshotVersion);
+    }
+
+    /**
+     * @return The call with the method's timeout, which can also be given a {@link Deadline}.
+     */
+    <T> @NotNull Call<T> withTimeout(@NotNull Call<T> call) {
+        return new TimeoutCall<>(call, timeoutNanos, null);
+    }
+
+    /**
+     * Sets the timeout when the call is sent, and on its clones, which don't inherit the timeout of the original.
+     * <p>
+     * It's the innermost call, so with a deadline each attempt of a retried or hedged call is sent with a timeout of
+     * the remaining budget, or fails fast without being sent once it's spent.
+     */
+    static final class TimeoutCall<T> extends ForwardingCall<T> {
+        private final long timeoutNanos;
+        @Nullable
+        private volatile Deadline deadline;
+
+        private TimeoutCall(Call<T> delegate, long timeoutNanos, @Nullable Deadline deadline) {
+            super(delegate);
+            this.timeoutNanos = timeoutNanos;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Sets the deadline of this call, unless it already has an earlier one.
+         */
+        void setDeadline(@NotNull Deadline deadline) {
+            var current = this.deadline;
+            if (current == null || deadline.isBefore(current)) this.deadline = deadline;
+        }
+
+        @Nullable
+        Deadline deadline() {
+            return deadline;
+        }
+
+        @Override
+        public @NotNull Response<T> execute() throws IOException {
+            var deadline = this.deadline;
+            if (deadline != null && deadline.isExpired()) throw new DeadlineExceededException(null);
+            applyTimeout(deadline);
+            try {
+                return delegate.execute();
+            } catch (InterruptedIOException e) {
+                throw exceeded(deadline, e);
+            }
+        }
+
+        @Override
+        public void enqueue(@NotNull Callback<T> callback) {
+            var deadline = this.deadline;
+            if (deadline != null && deadline.isExpired()) {
+                callback.onFailure(this, new DeadlineExceededException(null));
+                return;
+            }
+            if (timeoutNanos < 0 && deadline == null) {
+                //nothing to keep on the clones, the deadline can't be set once the call is sent
+                delegate.enqueue(callback);
+                return;
+            }
+            applyTimeout(deadline);
+            //the callback gets this call, so that its clones, like retries, keep the timeout
+            delegate.enqueue(new Callback<>() {
+                @Override
+                public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+                    callback.onResponse(TimeoutCall.this, response);
+                }
+
+                @Override
+                public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+                    callback.onFailure(TimeoutCall.this, t instanceof InterruptedIOException
+                            ? exceeded(deadline, (InterruptedIOException) t)
+                            : t);
+                }
+            });
+        }
+
+        private void applyTimeout(@Nullable Deadline deadline) {
+            if (timeoutNanos < 0 && deadline == null) return;
+            try {
+                var timeout = delegate.timeout();
+                if (timeoutNanos >= 0) timeout.timeout(timeoutNanos, TimeUnit.NANOSECONDS);
+                if (deadline == null) return;
+                //a timeout of 0 is no timeout, so the remaining budget is at least a nanosecond
+                var remaining = Math.max(1, deadline.remainingNanos());
+                var current = timeout.timeoutNanos();
+                if (current == 0 || remaining < current) timeout.timeout(remaining, TimeUnit.NANOSECONDS);
+            } catch (RuntimeException ignored) {
+                //the request couldn't be created, sending it reports the failure
+            }
+        }
+
+        /**
+         * @return A {@link DeadlineExceededException} if the timeout fired because the deadline was spent,
+         * otherwise the failure itself.
+         */
+        @NotNull
+        private static InterruptedIOException exceeded(@Nullable Deadline deadline, @NotNull InterruptedIOException e) {
+            if (deadline == null || !deadline.isExpired() || e instanceof DeadlineExceededException) return e;
+            return new DeadlineExceededException(e);
+        }
+
+        @Override
+        public @NotNull Call<T> clone() {
+            return new TimeoutCall<>(delegate.clone(), timeoutNanos, deadline);
+        }
+    }
+
+    /**
+     * @return The deadline of the call, or null if it doesn't have one.
+     */
+    @Nullable
+    static Deadline deadlineOf(@NotNull Call<?> call) {
+        var timed = ForwardingCall.find(call, TimeoutCall.class);
+        return timed == null ? null : timed.deadline();
+    }
+}
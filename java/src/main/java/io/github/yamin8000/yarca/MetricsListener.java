@@ -0,0 +1,50 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <h1>MetricsListener</h1>
+ * A listener that is notified with the timings of every completed CallX callback.
+ * <p>
+ * It's notified on the callback executor's thread, right after the callback returns, so it must be cheap and
+ * thread safe. See {@link HistogramMetrics} for the default implementation.
+ * <p>
+ * When no listener is set on the {@link CallXAdapterFactory}, the timings aren't even measured.
+ */
+interface MetricsListener {
+
+    enum Outcome {
+        /**
+         * A response with a {@code 2xx} status code.
+         */
+        SUCCESS,
+        /**
+         * A response with any other status code.
+         */
+        HTTP_ERROR,
+        /**
+         * A network failure or an unexpected exception creating the request or processing the response.
+         */
+        FAILURE,
+        /**
+         * The call was canceled.
+         */
+        CANCELED
+    }
+
+    /**
+     * @param endpoint        HTTP method and relative URL template of the call, like {@code GET posts/{id}}.
+     * @param outcome         Outcome of the call.
+     * @param latencyNanos    Time from enqueueing the call until its result is received,
+     *                        which includes the network and the converter.
+     * @param queueDelayNanos Time the callback waits in the callback executor before it runs.
+     * @param callbackNanos   Time the callback runs.
+     */
+    void onCall(
+            @NotNull String endpoint,
+            @NotNull Outcome outcome,
+            long latencyNanos,
+            long queueDelayNanos,
+            long callbackNanos
+    );
+}
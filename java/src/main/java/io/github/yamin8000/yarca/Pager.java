@@ -0,0 +1,178 @@
+package io.github.yamin8000.yarca;
+
+import androidx.annotation.RequiresApi;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import retrofit2.HttpException;
+import retrofit2.Response;
+
+/**
+ * <h1>Pager</h1>
+ * Publishes the pages of a paginated endpoint, fetching pages ahead of the subscriber's demand.
+ * <p>
+ * Starting from a clone of the first page's call, the call of each next page is extracted from the response of the
+ * previous one, for example from a cursor in its body or its {@code Link} header, until the extractor returns null.
+ * Besides the pages the subscriber has requested, up to {@code prefetch} more pages are fetched and buffered,
+ * so by the time the subscriber requests the next page, for example when the list is scrolled near its end,
+ * it's usually delivered right away. The buffer never holds more than {@code prefetch} pages beyond the demand.
+ * <p>
+ * Pages are delivered on the callback executor of the calls' factory. A response that isn't successful fails the
+ * subscription with {@link HttpException} after the buffered pages are delivered, and canceling the subscription
+ * cancels the page in flight. Each subscriber pages from the start.
+ * <p>
+ * On Android, {@link Flow} requires API 30.
+ *
+ * @param <T> Page type.
+ */
+@RequiresApi(30)
+final class Pager<T> implements Flow.Publisher<T> {
+
+    private final CallX<T> first;
+    private final Function<Response<T>, @Nullable CallX<T>> nextPage;
+    private final int prefetch;
+
+    /**
+     * @param first    Call of the first page, it's cloned for each subscriber.
+     * @param nextPage Extracts the call of the next page from the response of a page, or returns null after the last page.
+     * @param prefetch Number of pages that are fetched ahead of the subscriber's demand.
+     */
+    private Pager(@NotNull CallX<T> first, @NotNull Function<Response<T>, @Nullable CallX<T>> nextPage, int prefetch) {
+        this.first = first;
+        this.nextPage = nextPage;
+        this.prefetch = prefetch;
+    }
+
+    static <T> @NotNull Pager<T> of(
+            @NotNull CallX<T> first,
+            @NotNull Function<Response<T>, @Nullable CallX<T>> nextPage,
+            int prefetch
+    ) {
+        if (prefetch < 0) throw new IllegalArgumentException("prefetch < 0");
+        return new Pager<>(first, nextPage, prefetch);
+    }
+
+    @Override
+    public void subscribe(@NotNull Flow.Subscriber<? super T> subscriber) {
+        var subscription = new PageSubscription(subscriber, (CallX<T>) first.clone());
+        subscriber.onSubscribe(subscription);
+        subscription.drain();
+    }
+
+    private final class PageSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final ConcurrentLinkedQueue<T> pages = new ConcurrentLinkedQueue<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean isFetching = new AtomicBoolean();
+        private volatile boolean canceled = false;
+        private volatile boolean terminated = false;
+        @Nullable
+        private volatile CallX<T> next;
+        @Nullable
+        private volatile CallX<T> inFlight;
+        @Nullable
+        private volatile Throwable failure;
+
+        PageSubscription(Flow.Subscriber<? super T> subscriber, CallX<T> first) {
+            this.subscriber = subscriber;
+            this.next = first;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                failure = new IllegalArgumentException("non-positive request " + n);
+                next = null;
+                pages.clear();
+            } else {
+                //capped at Long.MAX_VALUE, which is an unbounded demand
+                requested.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            canceled = true;
+            var call = inFlight;
+            if (call != null) call.cancel();
+            drain();
+        }
+
+        /**
+         * Delivers the buffered pages and fetches the next one, only one thread runs it at a time,
+         * a thread that finds it running leaves it for the running thread to do again.
+         */
+        void drain() {
+            if (wip.getAndIncrement() != 0) return;
+            var missed = 1;
+            do {
+                if (canceled) {
+                    pages.clear();
+                    return;
+                }
+                while (requested.get() > 0 && !pages.isEmpty()) {
+                    var page = pages.poll();
+                    if (requested.get() != Long.MAX_VALUE) requested.decrementAndGet();
+                    subscriber.onNext(page);
+                    if (canceled) break;
+                }
+                if (!canceled && pages.isEmpty() && next == null && !isFetching.get() && !terminated) {
+                    terminated = true;
+                    var t = failure;
+                    if (t == null) subscriber.onComplete();
+                    else subscriber.onError(t);
+                    return;
+                }
+                if (!canceled) fetch();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void fetch() {
+            var call = next;
+            if (call == null) return;
+            var demand = requested.get();
+            if (demand != Long.MAX_VALUE && pages.size() >= demand + prefetch) return;
+            if (!isFetching.compareAndSet(false, true)) return;
+            next = null;
+            inFlight = call;
+            call.enqueue((c, response) -> onPage(response), (c, t) -> onFailure(t));
+            if (canceled) call.cancel();
+        }
+
+        private void onPage(@NotNull Response<T> response) {
+            inFlight = null;
+            if (!response.isSuccessful()) {
+                onFailure(new HttpException(response));
+                return;
+            }
+            try {
+                if (failure == null) next = nextPage.apply(response);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            //an empty page, like a 204, is skipped
+            var body = response.body();
+            if (body != null) pages.add(body);
+            isFetching.set(false);
+            drain();
+        }
+
+        private void onFailure(@NotNull Throwable t) {
+            inFlight = null;
+            failure = t;
+            isFetching.set(false);
+            drain();
+        }
+    }
+}
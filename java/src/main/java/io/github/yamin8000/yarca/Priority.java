@@ -0,0 +1,23 @@
+package io.github.yamin8000.yarca;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Priority of the calls of the annotated method in the {@link PriorityDispatcher} of the factory,
+ * higher values are more urgent. Methods without this annotation have the {@link #NORMAL} priority.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Priority {
+
+    int LOW = -10;
+    int NORMAL = 0;
+    int HIGH = 10;
+
+    int value();
+}
@@ -0,0 +1,276 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * <h1>PriorityDispatcher</h1>
+ * Releases calls to the network in priority order, under a concurrency cap.
+ * <p>
+ * Unlike the FIFO queue of {@link okhttp3.Dispatcher}, when the cap is reached calls wait in a priority queue,
+ * so a burst of background prefetches doesn't delay the calls that are on screen. The priority of a call is set by
+ * {@link Priority} on its method, or by {@link CallX#withPriority(int)}.
+ * <br>
+ * Waiting calls age so they can't starve: each aging interval a call waits raises its priority by one.
+ * So a call is released before a call with a priority higher by {@code n} that was queued less than
+ * {@code n} intervals later.
+ * <p>
+ * Queued calls don't hold a thread, and canceling one only marks it, it's never sent. The wait time of every call,
+ * including the ones that didn't wait, is kept in a {@link Histogram}.
+ */
+final class PriorityDispatcher {
+
+    private final int maxConcurrent;
+    private final long agingNanos;
+
+    private final PriorityQueue<Ticket> queue = new PriorityQueue<>();
+    private int inFlight = 0;
+    private int queued = 0;
+    private long sequence = 0;
+
+    private final Histogram waitTimes = new Histogram();
+    private final AtomicLong cancellations = new AtomicLong();
+
+    /**
+     * @param maxConcurrent Maximum calls of the dispatcher in flight at once.
+     * @param agingInterval How long a call must wait for its priority to be raised by one.
+     * @param unit          Time unit of the aging interval.
+     */
+    PriorityDispatcher(int maxConcurrent, long agingInterval, @NotNull TimeUnit unit) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("maxConcurrent < 1");
+        if (agingInterval <= 0) throw new IllegalArgumentException("agingInterval <= 0");
+        this.maxConcurrent = maxConcurrent;
+        this.agingNanos = unit.toNanos(agingInterval);
+    }
+
+    <T> @NotNull Call<T> wrap(@NotNull Call<T> call, int priority) {
+        return new PrioritizedCall<>(call, priority);
+    }
+
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return Number of calls waiting in the queue.
+     */
+    synchronized int queued() {
+        return queued;
+    }
+
+    /**
+     * @return The wait times of the calls in the queue, in nanoseconds.
+     */
+    @NotNull
+    Histogram.Snapshot waitTimes() {
+        return waitTimes.snapshot();
+    }
+
+    /**
+     * @return Number of calls that were canceled while they were waiting in the queue.
+     */
+    long cancellationCount() {
+        return cancellations.get();
+    }
+
+    /**
+     * Acquires a permit, or queues a ticket whose start is run once a permit is acquired for it.
+     *
+     * @return The queued ticket, or null if the permit is acquired right away.
+     */
+    @Nullable
+    private synchronized Ticket acquireOrQueue(int priority, @NotNull Runnable start) {
+        if (inFlight < maxConcurrent) {
+            inFlight++;
+            waitTimes.record(0);
+            return null;
+        }
+        var now = System.nanoTime();
+        //the earlier the virtual deadline, the higher the priority after aging, and it never changes while waiting
+        var ticket = new Ticket(now - priority * agingNanos, sequence++, now, start);
+        queue.add(ticket);
+        queued++;
+        return ticket;
+    }
+
+    /**
+     * Releases a permit and starts the next ticket with it.
+     */
+    private void release() {
+        Ticket next = null;
+        synchronized (this) {
+            inFlight--;
+            while (inFlight < maxConcurrent && (next = queue.poll()) != null) {
+                //canceled tickets are removed lazily
+                if (next.state != Ticket.QUEUED) continue;
+                next.state = Ticket.STARTED;
+                queued--;
+                inFlight++;
+                waitTimes.record(System.nanoTime() - next.enqueuedAt);
+                break;
+            }
+        }
+        if (next != null) next.start.run();
+    }
+
+    /**
+     * @return Whether the ticket was still queued, so it's never started.
+     */
+    private synchronized boolean cancel(@NotNull Ticket ticket) {
+        if (ticket.state != Ticket.QUEUED) return false;
+        ticket.state = Ticket.CANCELED;
+        queued--;
+        cancellations.incrementAndGet();
+        return true;
+    }
+
+    private synchronized boolean isStarted(@NotNull Ticket ticket) {
+        return ticket.state == Ticket.STARTED;
+    }
+
+    private static final class Ticket implements Comparable<Ticket> {
+        static final int QUEUED = 0;
+        static final int STARTED = 1;
+        static final int CANCELED = 2;
+
+        private final long deadline;
+        private final long sequence;
+        private final long enqueuedAt;
+        private final Runnable start;
+        //guarded by the dispatcher
+        private int state = QUEUED;
+
+        Ticket(long deadline, long sequence, long enqueuedAt, Runnable start) {
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.enqueuedAt = enqueuedAt;
+            this.start = start;
+        }
+
+        @Override
+        public int compareTo(@NotNull Ticket other) {
+            var byDeadline = Long.compare(deadline - other.deadline, 0);
+            return byDeadline != 0 ? byDeadline : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    final class PrioritizedCall<T> extends ForwardingCall<T> {
+        private volatile int priority;
+        private final AtomicBoolean executed = new AtomicBoolean();
+        private volatile boolean canceled = false;
+        @Nullable
+        private volatile Ticket ticket;
+        @Nullable
+        private volatile Callback<T> callback;
+        @Nullable
+        private volatile CountDownLatch latch;
+
+        PrioritizedCall(Call<T> delegate, int priority) {
+            super(delegate);
+            this.priority = priority;
+        }
+
+        /**
+         * Sets the priority of the call, it has no effect once the call is executed.
+         */
+        void setPriority(int priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public @NotNull Response<T> execute() throws IOException {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            var latch = new CountDownLatch(1);
+            var ticket = acquireOrQueue(priority, latch::countDown);
+            if (ticket != null) {
+                this.latch = latch;
+                this.ticket = ticket;
+                //canceled before the ticket was set, cancel() couldn't see it
+                if (canceled) cancel();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    if (!PriorityDispatcher.this.cancel(ticket) && isStarted(ticket)) release();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting in the priority queue");
+                }
+                if (!isStarted(ticket)) throw new CanceledException(null);
+            }
+
+            try {
+                return delegate.execute();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public void enqueue(@NotNull Callback<T> callback) {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            this.callback = callback;
+            var ticket = acquireOrQueue(priority, () -> start(callback));
+            if (ticket == null) start(callback);
+            else {
+                this.ticket = ticket;
+                if (canceled) cancel();
+            }
+        }
+
+        private void start(@NotNull Callback<T> callback) {
+            delegate.enqueue(new Callback<>() {
+                @Override
+                public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+                    release();
+                    callback.onResponse(PrioritizedCall.this, response);
+                }
+
+                @Override
+                public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+                    release();
+                    callback.onFailure(PrioritizedCall.this, t);
+                }
+            });
+            if (canceled) delegate.cancel();
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return executed.get();
+        }
+
+        @Override
+        public void cancel() {
+            canceled = true;
+            var ticket = this.ticket;
+            //a queued call is only marked, it was never sent
+            if (ticket != null && PriorityDispatcher.this.cancel(ticket)) {
+                var callback = this.callback;
+                if (callback != null) callback.onFailure(this, new CanceledException(null));
+                var latch = this.latch;
+                if (latch != null) latch.countDown();
+            } else delegate.cancel();
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return canceled || delegate.isCanceled();
+        }
+
+        @Override
+        public @NotNull Call<T> clone() {
+            return new PrioritizedCall<>(delegate.clone(), priority);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * <h1>RetryPolicy</h1>
+ * Retries transient failures with exponential backoff and decorrelated jitter.
+ * <p>
+ * A call is retried if its response code is one of the retry codes or if it fails with a retryable exception,
+ * by default {@code 408}, {@code 429}, {@code 502}, {@code 503}, {@code 504} and any {@link IOException}
+ * except {@link LimitExceededException}, {@link CircuitOpenException} and {@link DeadlineExceededException}.
+ * Canceled calls are never retried, and only idempotent methods are retried, see {@link Idempotent}.
+ * A call with a {@link Deadline} isn't retried if the delay would spend its remaining budget.
+ * <br>
+ * The delay before each retry is a random value between the base delay and three times the previous delay,
+ * capped at the max delay. If the response has a {@code Retry-After} header, the retry waits at least that long,
+ * or isn't retried at all if it's longer than the max delay.
+ * <p>
+ * Retries are limited by a {@link Budget} shared by all the calls of the policy, so retries can't stampede the
+ * upstream when it's down for everyone. Async backoffs are scheduled on {@link Util#scheduler()} without holding a
+ * thread, and the callback is notified once with the final result.
+ */
+final class RetryPolicy {
+
+    private final int maxAttempts;
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+    private final Set<Integer> retryCodes;
+    private final Predicate<Throwable> retryFailures;
+    private final Budget budget;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong budgetRejections = new AtomicLong();
+
+    private RetryPolicy(
+            int maxAttempts,
+            long baseDelayNanos,
+            long maxDelayNanos,
+            @NotNull Set<Integer> retryCodes,
+            @NotNull Predicate<Throwable> retryFailures,
+            @NotNull Budget budget
+    ) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayNanos = baseDelayNanos;
+        this.maxDelayNanos = maxDelayNanos;
+        this.retryCodes = retryCodes;
+        this.retryFailures = retryFailures;
+        this.budget = budget;
+    }
+
+    /**
+     * Creates a policy with the default retry rules and a budget of 20% of the requests.
+     *
+     * @param maxAttempts Maximum attempts of a call, including the first one.
+     * @param baseDelay   Minimum delay before a retry.
+     * @param maxDelay    Maximum delay before a retry.
+     * @param unit        Time unit of the delays.
+     */
+    static RetryPolicy of(int maxAttempts, long baseDelay, long maxDelay, @NotNull TimeUnit unit) {
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts < 1");
+        if (baseDelay <= 0 || maxDelay < baseDelay) throw new IllegalArgumentException("0 < baseDelay <= maxDelay");
+        return new RetryPolicy(
+                maxAttempts,
+                unit.toNanos(baseDelay),
+                unit.toNanos(maxDelay),
+                Set.of(408, 429, 502, 503, 504),
+                throwable -> throwable instanceof IOException
+                        && !(throwable instanceof LimitExceededException)
+                        && !(throwable instanceof CircuitOpenException)
+                        && !(throwable instanceof DeadlineExceededException),
+                new Budget(0.2, 10)
+        );
+    }
+
+    /**
+     * @param codes HTTP status codes that are retried.
+     * @return A copy of this policy that retries the given status codes instead of the default ones.
+     */
+    RetryPolicy retryOn(int @NotNull ... codes) {
+        var set = new HashSet<Integer>();
+        for (var code : codes) set.add(code);
+        return new RetryPolicy(maxAttempts, baseDelayNanos, maxDelayNanos, set, retryFailures, budget);
+    }
+
+    /**
+     * @param failures Whether a failure is retried.
+     * @return A copy of this policy that retries the given failures instead of the default ones.
+     */
+    RetryPolicy retryOn(@NotNull Predicate<Throwable> failures) {
+        return new RetryPolicy(maxAttempts, baseDelayNanos, maxDelayNanos, retryCodes, failures, budget);
+    }
+
+    /**
+     * @param budget Budget of the retries, see {@link Budget}.
+     * @return A copy of this policy with the given budget.
+     */
+    RetryPolicy withBudget(@NotNull Budget budget) {
+        return new RetryPolicy(maxAttempts, baseDelayNanos, maxDelayNanos, retryCodes, retryFailures, budget);
+    }
+
+    long retryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return Number of retries that weren't sent because the budget was exhausted.
+     */
+    long budgetRejectionCount() {
+        return budgetRejections.get();
+    }
+
+    /**
+     * @param isIdempotent Whether the call's method is idempotent, only those are retried.
+     */
+    <T> @NotNull Call<T> wrap(@NotNull Call<T> call, boolean isIdempotent) {
+        return new RetryingCall<>(call, isIdempotent);
+    }
+
+    /**
+     * @param call The attempt, whose deadline bounds the delay.
+     * @return The delay before the next retry, or -1 if the response shouldn't be retried.
+     */
+    private long nextDelay(
+            @NotNull Call<?> call,
+            int attempt,
+            long previousDelay,
+            @Nullable Response<?> response,
+            @Nullable Throwable t
+    ) {
+        if (attempt >= maxAttempts) return -1;
+        if (response != null && !retryCodes.contains(response.code())) return -1;
+        if (t != null && !retryFailures.test(t)) return -1;
+
+        var upper = Math.min(maxDelayNanos, previousDelay * 3);
+        var delay = upper <= baseDelayNanos
+                ? baseDelayNanos
+                : ThreadLocalRandom.current().nextLong(baseDelayNanos, upper + 1);
+        if (response != null) {
+            var retryAfter = retryAfter(response);
+            if (retryAfter > maxDelayNanos) return -1;
+            delay = Math.max(delay, retryAfter);
+        }
+        var deadline = MethodPolicy.deadlineOf(call);
+        if (deadline != null && deadline.remainingNanos() <= delay) return -1;
+
+        if (!budget.tryWithdraw()) {
+            budgetRejections.incrementAndGet();
+            return -1;
+        }
+        retries.incrementAndGet();
+        return delay;
+    }
+
+    /**
+     * @return The {@code Retry-After} of the response in nanoseconds, or 0 if it doesn't have one.
+     */
+    private static long retryAfter(@NotNull Response<?> response) {
+        var headers = response.headers();
+        var value = headers.get("Retry-After");
+        if (value == null) return 0;
+        try {
+            return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            var date = headers.getDate("Retry-After");
+            if (date == null) return 0;
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, date.getTime() - System.currentTimeMillis()));
+        }
+    }
+
+    private static void discard(@NotNull Response<?> response) {
+        var errorBody = response.errorBody();
+        if (errorBody != null) errorBody.close();
+    }
+
+    private final class RetryingCall<T> extends ForwardingCall<T> {
+        private final boolean isIdempotent;
+        private final AtomicBoolean executed = new AtomicBoolean();
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile boolean canceled = false;
+        private volatile Call<T> current;
+        @Nullable
+        private volatile Callback<T> callback;
+        @Nullable
+        private volatile ScheduledFuture<?> timer;
+
+        RetryingCall(Call<T> delegate, boolean isIdempotent) {
+            super(delegate);
+            this.isIdempotent = isIdempotent;
+            this.current = delegate;
+        }
+
+        @Override
+        public @NotNull Response<T> execute() throws IOException {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            budget.deposit();
+
+            var delay = baseDelayNanos;
+            for (int attempt = 1; ; attempt++) {
+                Response<T> response = null;
+                IOException failure = null;
+                try {
+                    response = current.execute();
+                } catch (IOException e) {
+                    failure = e;
+                }
+
+                delay = isIdempotent && !canceled ? nextDelay(current, attempt, delay, response, failure) : -1;
+                if (delay < 0) {
+                    if (failure != null) throw failure;
+                    return response;
+                }
+                if (response != null) discard(response);
+
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for retry");
+                }
+                if (canceled) throw new CanceledException(null);
+                current = current.clone();
+            }
+        }
+
+        @Override
+        public void enqueue(@NotNull Callback<T> callback) {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            this.callback = callback;
+            budget.deposit();
+            attempt(delegate, callback, 1, baseDelayNanos, isIdempotent);
+        }
+
+        private void attempt(
+                @NotNull Call<T> call,
+                @NotNull Callback<T> callback,
+                int attempt,
+                long previousDelay,
+                boolean isRetryable
+        ) {
+            current = call;
+            call.enqueue(new Callback<>() {
+                @Override
+                public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+                    var delay = isRetryable && !canceled ? nextDelay(call, attempt, previousDelay, response, null) : -1;
+                    if (delay < 0) {
+                        if (done.compareAndSet(false, true)) callback.onResponse(RetryingCall.this, response);
+                        return;
+                    }
+                    discard(response);
+                    retry(call, callback, attempt, delay);
+                }
+
+                @Override
+                public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+                    var delay = isRetryable && !canceled ? nextDelay(call, attempt, previousDelay, null, t) : -1;
+                    if (delay < 0) {
+                        if (done.compareAndSet(false, true)) callback.onFailure(RetryingCall.this, t);
+                        return;
+                    }
+                    retry(call, callback, attempt, delay);
+                }
+            });
+            if (canceled) call.cancel();
+        }
+
+        private void retry(@NotNull Call<T> call, @NotNull Callback<T> callback, int attempt, long delay) {
+            timer = Util.scheduler().schedule(() -> {
+                if (canceled) notifyCanceled();
+                else attempt(call.clone(), callback, attempt + 1, delay, true);
+            }, delay, TimeUnit.NANOSECONDS);
+            //canceled before the timer was set, cancel() couldn't see it
+            if (canceled) cancel();
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return executed.get();
+        }
+
+        @Override
+        public void cancel() {
+            canceled = true;
+            var pending = timer;
+            //waiting for a retry, there is no call in flight that would notify the callback
+            if (pending != null && pending.cancel(false)) notifyCanceled();
+            current.cancel();
+        }
+
+        private void notifyCanceled() {
+            var callback = this.callback;
+            if (callback != null && done.compareAndSet(false, true))
+                callback.onFailure(this, new CanceledException(null));
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        @Override
+        public @NotNull Call<T> clone() {
+            return new RetryingCall<>(delegate.clone(), isIdempotent);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.Request;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * <h1>SingleFlight</h1>
+ * Coalesces identical in-flight requests into one network call.
+ * <p>
+ * Requests are keyed by their method, URL, the values of the configured key headers and the response type of their
+ * retrofit method, so methods of the same URL with different body types don't share a response.
+ * While a request is in flight, every other identical request that is enqueued joins it instead of
+ * going to the network, and all of them are notified with the same {@link Response}.
+ * <br>
+ * Only {@code GET} and {@code HEAD} requests are coalesced, other methods and synchronous
+ * {@link Call#execute()} calls go straight to the network.
+ * <p>
+ * Cancellation is reference counted, a canceled subscriber is detached and notified with a
+ * {@link CanceledException}, the shared call itself is only canceled when its last subscriber is canceled.
+ * <p>
+ * Since subscribers share the same {@link Response}, the decoded body should be treated as immutable
+ * and the error body can only be read by one of them.
+ */
+final class SingleFlight {
+
+    private final String[] keyHeaders;
+    private final ConcurrentHashMap<String, Flight<?>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * @param keyHeaders Names of the request headers that are part of the key besides method and URL.
+     */
+    SingleFlight(@NotNull String... keyHeaders) {
+        this.keyHeaders = new String[keyHeaders.length];
+        for (int i = 0; i < keyHeaders.length; i++)
+            this.keyHeaders[i] = keyHeaders[i].toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Wraps the given call so that it joins an identical in-flight call if there is one.
+     *
+     * @param responseType Response body type of the call's retrofit method.
+     */
+    <T> @NotNull Call<T> wrap(@NotNull Call<T> call, @NotNull Type responseType) {
+        return new SharedCall<>(call, Util.typeName(responseType));
+    }
+
+    /**
+     * @return Number of distinct requests that are currently in flight.
+     */
+    int inFlight() {
+        return flights.size();
+    }
+
+    @NotNull String key(@NotNull Request request, @NotNull String responseType) {
+        var builder = new StringBuilder(request.method()).append(' ').append(request.url())
+                .append(' ').append(responseType);
+        for (var name : keyHeaders)
+            builder.append('\n').append(name).append(':').append(request.headers(name));
+        return builder.toString();
+    }
+
+    private static boolean isCoalescable(@NotNull Request request) {
+        var method = request.method();
+        return "GET".equals(method) || "HEAD".equals(method);
+    }
+
+    private final class SharedCall<T> extends ForwardingCall<T> {
+        private final String responseType;
+        private final AtomicBoolean executed = new AtomicBoolean();
+        private final AtomicBoolean canceled = new AtomicBoolean();
+        @Nullable
+        private volatile Flight<T> flight;
+        private volatile boolean isPassThrough = false;
+
+        SharedCall(Call<T> delegate, String responseType) {
+            super(delegate);
+            this.responseType = responseType;
+        }
+
+        @Override
+        public @NotNull Response<T> execute() throws IOException {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            return delegate.execute();
+        }
+
+        @Override
+        public void enqueue(@NotNull Callback<T> callback) {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            if (canceled.get()) {
+                callback.onFailure(this, new CanceledException(null));
+                return;
+            }
+
+            var request = delegate.request();
+            if (!isCoalescable(request)) {
+                isPassThrough = true;
+                delegate.enqueue(new Callback<>() {
+                    @Override
+                    public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+                        callback.onResponse(SharedCall.this, response);
+                    }
+
+                    @Override
+                    public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+                        callback.onFailure(SharedCall.this, t);
+                    }
+                });
+                if (canceled.get()) delegate.cancel();
+                return;
+            }
+
+            var key = key(request, responseType);
+            while (true) {
+                @SuppressWarnings("unchecked")
+                var current = (Flight<T>) flights.computeIfAbsent(key, k -> new Flight<>(k, delegate));
+                if (current.join(this, callback)) {
+                    flight = current;
+                    if (current.call == delegate) current.start();
+                    //canceled while joining, the subscriber is detached like any other cancellation
+                    if (canceled.get()) leave(current);
+                    return;
+                }
+                //the flight completed before we could join it, start or join a new one
+                flights.remove(key, current);
+            }
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return executed.get();
+        }
+
+        @Override
+        public void cancel() {
+            if (!canceled.compareAndSet(false, true)) return;
+            var current = flight;
+            if (current != null) leave(current);
+            else if (isPassThrough) delegate.cancel();
+        }
+
+        private void leave(@NotNull Flight<T> current) {
+            var callback = current.leave(this);
+            if (callback != null) callback.onFailure(this, new CanceledException(null));
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return canceled.get() || (isPassThrough && delegate.isCanceled());
+        }
+
+        @Override
+        public @NotNull Call<T> clone() {
+            return new SharedCall<>(delegate.clone(), responseType);
+        }
+    }
+
+    private final class Flight<T> implements Callback<T> {
+        private final String key;
+        private final Call<T> call;
+        private final List<SharedCall<T>> subscribers = new ArrayList<>(2);
+        private final List<Callback<T>> callbacks = new ArrayList<>(2);
+        private boolean done = false;
+
+        Flight(String key, Call<T> call) {
+            this.key = key;
+            this.call = call;
+        }
+
+        synchronized boolean join(@NotNull SharedCall<T> subscriber, @NotNull Callback<T> callback) {
+            if (done) return false;
+            subscribers.add(subscriber);
+            callbacks.add(callback);
+            return true;
+        }
+
+        void start() {
+            call.enqueue(this);
+        }
+
+        /**
+         * Detaches the subscriber and cancels the shared call if it was the last one.
+         *
+         * @return The callback of the detached subscriber or null if the flight is already done.
+         */
+        @Nullable Callback<T> leave(@NotNull SharedCall<T> subscriber) {
+            Callback<T> callback;
+            boolean isLast;
+            synchronized (this) {
+                var index = subscribers.indexOf(subscriber);
+                if (done || index == -1) return null;
+                subscribers.remove(index);
+                callback = callbacks.remove(index);
+                isLast = subscribers.isEmpty();
+                if (isLast) done = true;
+            }
+            if (isLast) {
+                flights.remove(key, this);
+                call.cancel();
+            }
+            return callback;
+        }
+
+        @Override
+        public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+            var subscribers = drain();
+            for (int i = 0; i < subscribers.size(); i++)
+                callbacks.get(i).onResponse(subscribers.get(i), response);
+        }
+
+        @Override
+        public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+            var subscribers = drain();
+            for (int i = 0; i < subscribers.size(); i++)
+                callbacks.get(i).onFailure(subscribers.get(i), t);
+        }
+
+        /**
+         * Marks the flight as done, after this no subscriber can join or leave it.
+         *
+         * @return The subscribers that should be notified, in the same order as {@link #callbacks}.
+         */
+        private List<SharedCall<T>> drain() {
+            flights.remove(key, this);
+            synchronized (this) {
+                if (done) return List.of();
+                done = true;
+                return subscribers;
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package io.github.yamin8000.yarca;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Keeps the last successful decoded body of the annotated method in the {@link SnapshotStore} of the factory,
+ * so after a cold start {@link CallX#enqueueAsyncBody(java.util.function.BiConsumer)} delivers it right away,
+ * followed by the fresh response.
+ * <p>
+ * The version must be increased when the response type changes in a way that the converter can't read the old
+ * snapshots, then they are discarded.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Snapshot {
+
+    int version() default 0;
+}
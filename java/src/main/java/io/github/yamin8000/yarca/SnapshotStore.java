@@ -0,0 +1,476 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ByteString;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Converter;
+import retrofit2.Response;
+
+/**
+ * <h1>SnapshotStore</h1>
+ * A bounded on-disk store of the last successful decoded bodies of the {@link Snapshot} methods,
+ * so a cold start can show the last data before the network responds.
+ * <p>
+ * Bodies are encoded by retrofit's request body converter of the method's type and decoded by its response body
+ * converter, so the snapshot is as compact as the wire format of the converter, and binary for binary converters.
+ * Each file has a header with the store's and the method's versions, a snapshot of another version is discarded.
+ * <p>
+ * Snapshots are keyed by the method and URL of their request, the response type of their retrofit method, the values
+ * of the configured vary headers and the namespace of the store, like the signed-in account, since they outlive the session on disk. Headers that are added
+ * by OkHttp interceptors aren't visible to the store, so an app that signs its requests there must set the namespace.
+ * On logout, {@link #clear()} deletes the snapshots of every account, and the responses of the calls that were sent
+ * before it, or before the namespace was changed, aren't saved.
+ * <p>
+ * Reads and writes run on a single background thread with {@link java.nio.channels.FileChannel}, so they never block
+ * the callback path: a write is queued after the response is delivered, and while it's queued, a newer body of the
+ * same key replaces it. A snapshot is written to a temporary file that is renamed over the old one, so a crash never
+ * leaves a torn snapshot.
+ * <br>
+ * When the total size exceeds the bound, the least recently written snapshots are deleted.
+ * <p>
+ * Like in {@link DecodedCache}, a saved body is encoded later on the background thread,
+ * so it should be treated as immutable.
+ */
+final class SnapshotStore {
+
+    private static final int MAGIC = 0x5953_4e50;
+    private static final String SUFFIX = ".snapshot";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final int version;
+    private final long maxBytes;
+    private final String[] varyHeaders;
+    @Nullable
+    private volatile String namespace = null;
+    //increased by clear() and setNamespace(), the calls sent before it don't save their bodies
+    private final AtomicInteger generation = new AtomicInteger();
+    private final ExecutorService io = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "yarca snapshots");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //the latest body of each key that isn't written yet
+    private final ConcurrentHashMap<String, PendingWrite<?>> pending = new ConcurrentHashMap<>();
+    //sizes of the snapshot files in least recently written order, only accessed on the io thread
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>();
+    private long totalBytes = 0;
+    private boolean isIndexed = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param directory   Directory of the snapshots, like a directory in the app's files, not shared with other data.
+     * @param version     Version of the store, increasing it discards all the snapshots, for example the app version.
+     * @param maxBytes    Maximum total size of the snapshot files.
+     * @param varyHeaders Names of the request headers whose values are part of the key besides method and URL,
+     *                    for example {@code Authorization}.
+     */
+    SnapshotStore(@NotNull File directory, int version, long maxBytes, @NotNull String... varyHeaders) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes <= 0");
+        this.directory = directory;
+        this.version = version;
+        this.maxBytes = maxBytes;
+        this.varyHeaders = new String[varyHeaders.length];
+        for (int i = 0; i < varyHeaders.length; i++)
+            this.varyHeaders[i] = varyHeaders[i].toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Sets the namespace of the snapshots, like the id of the signed-in account, so an account never reads the
+     * snapshots of another. The calls that were sent before it don't save their bodies.
+     *
+     * @param namespace The namespace, or null for none.
+     */
+    void setNamespace(@Nullable String namespace) {
+        this.namespace = namespace;
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Wraps the given call so that its successful bodies are saved.
+     *
+     * @param responseType  Response body type of the call's retrofit method.
+     * @param decoder       Response body converter of the method.
+     * @param encoder       Request body converter of the method's response type.
+     * @param methodVersion Version of the method's snapshots, see {@link Snapshot#version()}.
+     */
+    <T> @NotNull Call<T> wrap(
+            @NotNull Call<T> call,
+            @NotNull Type responseType,
+            @NotNull Converter<ResponseBody, T> decoder,
+            @NotNull Converter<T, RequestBody> encoder,
+            int methodVersion
+    ) {
+        return new SnapshottingCall<>(call, Util.typeName(responseType), decoder, encoder, methodVersion);
+    }
+
+    long hitCount() {
+        return hits.get();
+    }
+
+    long missCount() {
+        return misses.get();
+    }
+
+    long writeCount() {
+        return writes.get();
+    }
+
+    long evictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Deletes all the snapshots in the background, like on logout.
+     * The calls that were sent before it don't save their bodies.
+     */
+    void clear() {
+        generation.incrementAndGet();
+        pending.clear();
+        io.execute(() -> {
+            index();
+            for (var key : new ArrayList<>(sizes.keySet())) delete(key);
+            totalBytes = 0;
+        });
+    }
+
+    /**
+     * @return The total size of the snapshot files, it waits for the queued reads and writes.
+     */
+    long sizeBytes() throws InterruptedException {
+        try {
+            return io.submit(() -> {
+                index();
+                return totalBytes;
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Reads the snapshot of the key on the background thread.
+     *
+     * @param onSnapshot Called on the background thread with the decoded body, it's not called on a miss.
+     */
+    private <T> void read(
+            @NotNull String key,
+            int methodVersion,
+            @NotNull Converter<ResponseBody, T> decoder,
+            @NotNull Consumer<T> onSnapshot
+    ) {
+        io.execute(() -> {
+            T body;
+            try {
+                body = decode(key, methodVersion, decoder);
+            } catch (IOException | RuntimeException e) {
+                //unreadable, like a snapshot that the converter can't read anymore
+                delete(key);
+                body = null;
+            }
+            if (body == null) misses.incrementAndGet();
+            else {
+                hits.incrementAndGet();
+                onSnapshot.accept(body);
+            }
+        });
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private <T> T decode(
+            @NotNull String key,
+            int methodVersion,
+            @NotNull Converter<ResponseBody, T> decoder
+    ) throws IOException {
+        //a newer body that isn't written yet, of another method version it's a miss, the file is outdated too
+        var write = pending.get(key);
+        if (write != null) return write.methodVersion == methodVersion ? (T) write.body : null;
+
+        var file = file(key);
+        if (!file.exists()) return null;
+        ByteBuffer buffer;
+        try (var channel = new FileInputStream(file).getChannel()) {
+            var size = channel.size();
+            if (size > maxBytes) throw new IOException("Snapshot is larger than the store");
+            buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) if (channel.read(buffer) < 0) throw new IOException("Truncated snapshot");
+        }
+        buffer.flip();
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != version || buffer.getInt() != methodVersion) {
+            delete(key);
+            return null;
+        }
+        var contentType = new byte[buffer.getShort()];
+        buffer.get(contentType);
+        var length = buffer.getInt();
+        if (length != buffer.remaining()) throw new IOException("Truncated snapshot");
+        var payload = new Buffer();
+        payload.write(buffer);
+        var mediaType = contentType.length == 0 ? null : MediaType.parse(new String(contentType, StandardCharsets.UTF_8));
+        return decoder.convert(ResponseBody.create(mediaType, length, payload));
+    }
+
+    /**
+     * Queues the write of the body, replacing the queued write of the same key if there is one.
+     */
+    private <T> void write(
+            @NotNull String key,
+            @NotNull T body,
+            int methodVersion,
+            @NotNull Converter<T, RequestBody> encoder
+    ) {
+        var write = new PendingWrite<>(body, methodVersion, encoder);
+        //only the first write of a burst is queued, it writes the latest body
+        if (pending.put(key, write) == null) io.execute(() -> flush(key));
+    }
+
+    private void flush(@NotNull String key) {
+        var latest = pending.get(key);
+        if (latest == null) return;
+        try {
+            encode(key, latest);
+            writes.incrementAndGet();
+        } catch (IOException | RuntimeException ignored) {
+            //a snapshot is only an optimization, the next response is written again
+        } finally {
+            //replaced while it was written, the replacement wasn't queued
+            if (!pending.remove(key, latest) && pending.containsKey(key)) io.execute(() -> flush(key));
+        }
+    }
+
+    private <T> void encode(@NotNull String key, @NotNull PendingWrite<T> write) throws IOException {
+        var requestBody = write.encoder.convert(write.body);
+        var payload = new Buffer();
+        requestBody.writeTo(payload);
+        var mediaType = requestBody.contentType();
+        var contentType = mediaType == null ? new byte[0] : mediaType.toString().getBytes(StandardCharsets.UTF_8);
+
+        var header = ByteBuffer.allocate(4 * 3 + 2 + contentType.length + 4);
+        header.putInt(MAGIC).putInt(version).putInt(write.methodVersion);
+        header.putShort((short) contentType.length).put(contentType);
+        header.putInt((int) payload.size());
+        header.flip();
+        var size = header.remaining() + payload.size();
+        if (size > maxBytes) return;
+
+        index();
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Can't create " + directory);
+        var temp = new File(directory, key + TEMP_SUFFIX);
+        var buffers = new ByteBuffer[]{header, ByteBuffer.wrap(payload.readByteArray())};
+        try (var channel = new FileOutputStream(temp).getChannel()) {
+            while (buffers[1].hasRemaining()) channel.write(buffers);
+        }
+        if (!temp.renameTo(file(key))) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Can't rename " + temp);
+        }
+
+        var old = sizes.remove(key);
+        if (old != null) totalBytes -= old;
+        sizes.put(key, size);
+        totalBytes += size;
+        evict(key);
+    }
+
+    /**
+     * Deletes the least recently written snapshots until the total size is within the bound.
+     */
+    private void evict(@NotNull String written) {
+        var iterator = sizes.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            var eldest = iterator.next();
+            if (eldest.getKey().equals(written)) continue;
+            //noinspection ResultOfMethodCallIgnored
+            file(eldest.getKey()).delete();
+            totalBytes -= eldest.getValue();
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Loads the sizes of the existing snapshots on the first access, and deletes the leftover temporary files.
+     */
+    private void index() {
+        if (isIndexed) return;
+        isIndexed = true;
+        var files = directory.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (var file : files) {
+            var name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            } else if (name.endsWith(SUFFIX)) {
+                sizes.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+                totalBytes += file.length();
+            }
+        }
+    }
+
+    private void delete(@NotNull String key) {
+        //noinspection ResultOfMethodCallIgnored
+        file(key).delete();
+        var size = sizes.remove(key);
+        if (size != null) totalBytes -= size;
+    }
+
+    @NotNull
+    private File file(@NotNull String key) {
+        return new File(directory, key + SUFFIX);
+    }
+
+    /**
+     * @return The key of the request in the current namespace, hashed, so the file names don't reveal the header values.
+     */
+    @NotNull
+    private String key(@NotNull Request request, @NotNull String responseType) {
+        var builder = new StringBuilder();
+        var namespace = this.namespace;
+        if (namespace != null) builder.append(namespace).append('\n');
+        builder.append(request.method()).append(' ').append(request.url()).append(' ').append(responseType);
+        for (var name : varyHeaders)
+            builder.append('\n').append(name).append(':').append(request.headers(name));
+        return ByteString.encodeUtf8(builder.toString()).sha256().hex();
+    }
+
+    private static final class PendingWrite<T> {
+        private final T body;
+        private final int methodVersion;
+        private final Converter<T, RequestBody> encoder;
+
+        PendingWrite(T body, int methodVersion, Converter<T, RequestBody> encoder) {
+            this.body = body;
+            this.methodVersion = methodVersion;
+            this.encoder = encoder;
+        }
+    }
+
+    final class SnapshottingCall<T> extends ForwardingCall<T> {
+        private final String responseType;
+        private final Converter<ResponseBody, T> decoder;
+        private final Converter<T, RequestBody> encoder;
+        private final int methodVersion;
+        private final AtomicBoolean executed = new AtomicBoolean();
+        //the key and the generation of the store when the call was sent
+        @Nullable
+        private volatile String key;
+        private volatile int sentGeneration;
+
+        SnapshottingCall(
+                Call<T> delegate,
+                String responseType,
+                Converter<ResponseBody, T> decoder,
+                Converter<T, RequestBody> encoder,
+                int methodVersion
+        ) {
+            super(delegate);
+            this.responseType = responseType;
+            this.decoder = decoder;
+            this.encoder = encoder;
+            this.methodVersion = methodVersion;
+        }
+
+        /**
+         * Reads the snapshot of this call's request in the background.
+         *
+         * @param onSnapshot Called on the background thread with the body, it's not called on a miss.
+         */
+        void readSnapshot(@NotNull Consumer<T> onSnapshot) {
+            read(key(delegate.request(), responseType), methodVersion, decoder, onSnapshot);
+        }
+
+        @Override
+        public @NotNull Response<T> execute() throws IOException {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            sent();
+            var response = delegate.execute();
+            save(response);
+            return response;
+        }
+
+        @Override
+        public void enqueue(@NotNull Callback<T> callback) {
+            if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+            sent();
+            delegate.enqueue(new Callback<>() {
+                @Override
+                public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+                    callback.onResponse(SnapshottingCall.this, response);
+                    save(response);
+                }
+
+                @Override
+                public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+                    callback.onFailure(SnapshottingCall.this, t);
+                }
+            });
+        }
+
+        private void sent() {
+            sentGeneration = generation.get();
+            try {
+                key = key(delegate.request(), responseType);
+            } catch (RuntimeException ignored) {
+                //the request couldn't be created, sending it reports the failure
+            }
+        }
+
+        private void save(@NotNull Response<T> response) {
+            var body = response.body();
+            var key = this.key;
+            if (!response.isSuccessful() || body == null || key == null) return;
+            //a logout or an account switch while the call was in flight
+            if (sentGeneration != generation.get()) return;
+            write(key, body, methodVersion, encoder);
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return executed.get();
+        }
+
+        @Override
+        public @NotNull Call<T> clone() {
+            return new SnapshottingCall<>(delegate.clone(), responseType, decoder, encoder, methodVersion);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import retrofit2.Converter;
+import retrofit2.HttpException;
+import retrofit2.Response;
+
+/**
+ * <h1>StreamingDecoder</h1>
+ * Decodes the elements of a top-level JSON array response one by one, as they are read from the network.
+ * <p>
+ * The array is only scanned for the boundaries of its elements, and each element is decoded by retrofit's
+ * converter of the element type, so it works with any JSON converter. So the first elements are delivered before
+ * the last byte is received, and only a chunk of decoded elements is held in memory instead of the whole list.
+ * <p>
+ * Chunks are delivered in order on the callback executor. The reader stays at most one chunk ahead of the consumer,
+ * it waits for the consumer before delivering the next chunk, which also stops reading from the socket.
+ *
+ * @param <E> Element type.
+ */
+final class StreamingDecoder<E> {
+
+    private final okhttp3.Call.Factory callFactory;
+    private final Converter<ResponseBody, E> converter;
+
+    StreamingDecoder(@NotNull okhttp3.Call.Factory callFactory, @NotNull Converter<ResponseBody, E> converter) {
+        this.callFactory = callFactory;
+        this.converter = converter;
+    }
+
+    /**
+     * Sends the request and starts decoding its response.
+     *
+     * @return The raw call, canceling it stops the decoding.
+     */
+    @NotNull
+    okhttp3.Call start(
+            @NotNull Request request,
+            @NotNull Executor callbackExecutor,
+            int chunkSize,
+            @NotNull Consumer<List<E>> onChunk,
+            @NotNull Consumer<@Nullable Throwable> onComplete
+    ) {
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize < 1");
+        var call = callFactory.newCall(request);
+        call.enqueue(new okhttp3.Callback() {
+            @Override
+            public void onResponse(@NotNull okhttp3.Call call, @NotNull okhttp3.Response response) {
+                Throwable failure = null;
+                try (var body = response.body()) {
+                    if (!response.isSuccessful()) {
+                        var errorBody = ResponseBody.create(body.contentType(), body.bytes());
+                        throw new HttpException(Response.error(errorBody, response));
+                    }
+                    decode(call, body.source(), callbackExecutor, chunkSize, onChunk);
+                } catch (Throwable t) {
+                    failure = call.isCanceled() ? new CanceledException(null) : t;
+                }
+                final var result = failure;
+                callbackExecutor.execute(() -> onComplete.accept(result));
+            }
+
+            @Override
+            public void onFailure(@NotNull okhttp3.Call call, @NotNull IOException e) {
+                callbackExecutor.execute(() -> onComplete.accept(e));
+            }
+        });
+        return call;
+    }
+
+    private void decode(
+            @NotNull okhttp3.Call call,
+            @NotNull BufferedSource source,
+            @NotNull Executor callbackExecutor,
+            int chunkSize,
+            @NotNull Consumer<List<E>> onChunk
+    ) throws IOException, InterruptedException {
+        //a single permit, so chunks can't be reordered or overlap on a multithreaded executor
+        var consumed = new Semaphore(1);
+        var chunk = new ArrayList<E>(chunkSize);
+        var element = new Buffer();
+
+        if (skipWhitespace(source) != '[') throw new IOException("Response body is not a JSON array");
+        source.readByte();
+        var end = readElement(source, element);
+        while (end != EMPTY) {
+            chunk.add(converter.convert(ResponseBody.create(null, element.size(), element)));
+            element = new Buffer();
+            if (chunk.size() == chunkSize || end == LAST) {
+                acquire(call, consumed);
+                final var delivered = chunk;
+                callbackExecutor.execute(() -> {
+                    try {
+                        onChunk.accept(delivered);
+                    } finally {
+                        consumed.release();
+                    }
+                });
+                chunk = new ArrayList<>(chunkSize);
+            }
+            if (end == LAST) break;
+            end = readElement(source, element);
+            if (end == EMPTY) throw new IOException("Trailing comma in JSON array");
+        }
+        //onComplete comes after the last chunk
+        acquire(call, consumed);
+    }
+
+    /**
+     * Waits for the consumer to take the previous chunk, the already buffered elements aren't delivered once the call
+     * is canceled.
+     */
+    private static void acquire(@NotNull okhttp3.Call call, @NotNull Semaphore consumed) throws InterruptedException, IOException {
+        while (true) {
+            if (call.isCanceled()) throw new CanceledException(null);
+            if (consumed.tryAcquire(100, TimeUnit.MILLISECONDS)) return;
+        }
+    }
+
+    private static final int EMPTY = 0;
+    private static final int NEXT = 1;
+    private static final int LAST = 2;
+
+    /**
+     * Copies the next element of the array to the buffer, and consumes the comma or the bracket after it.
+     *
+     * @return {@link #NEXT} if another element follows, {@link #LAST} if it was the last element,
+     * or {@link #EMPTY} if the array ended without an element.
+     */
+    private static int readElement(@NotNull BufferedSource source, @NotNull Buffer element) throws IOException {
+        if (skipWhitespace(source) == ']') {
+            source.readByte();
+            return EMPTY;
+        }
+        var depth = 0;
+        var inString = false;
+        var escaped = false;
+        while (true) {
+            var b = source.readByte();
+            if (inString) {
+                if (escaped) escaped = false;
+                else if (b == '\\') escaped = true;
+                else if (b == '"') inString = false;
+            } else if (b == '"') inString = true;
+            else if (b == '[' || b == '{') depth++;
+            else if (b == ']' || b == '}') {
+                if (depth == 0) return LAST;
+                depth--;
+            } else if (b == ',' && depth == 0) return NEXT;
+            element.writeByte(b);
+        }
+    }
+
+    private static byte skipWhitespace(@NotNull BufferedSource source) throws IOException {
+        while (true) {
+            if (!source.request(1)) throw new IOException("Unexpected end of JSON array");
+            var b = source.getBuffer().getByte(0);
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') return b;
+            source.readByte();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * <h1>SwitchedCall</h1>
+ * A call that is the latest of its key, starting it supersedes the call of the same key that is still in flight,
+ * like the search of the previous keystroke.
+ * <p>
+ * A superseded call is canceled, which frees its dispatcher slot and stops its download, and the adapter drops the
+ * outcome for the callbacks of its async methods, like {@link CallX#enqueueAsyncBody(java.util.function.BiConsumer)},
+ * so they are never called. Its other callbacks and futures fail with {@link CanceledException}, so the calls that
+ * wait for it, like a {@link Batch}, still complete.
+ * <br>
+ * With a debounce window, an enqueued call waits for the window on {@link Util#scheduler()} before it's sent,
+ * and a call that is superseded while it waits is never sent. Executed calls aren't debounced.
+ * <p>
+ * The keys are shared by all the factories, and a key is removed once its latest call is done.
+ *
+ * @param <T> Successful response body type.
+ */
+final class SwitchedCall<T> extends ForwardingCall<T> {
+
+    private static final ConcurrentHashMap<Object, SwitchedCall<?>> LATEST = new ConcurrentHashMap<>();
+
+    private final Object key;
+    private final long debounceNanos;
+    private final AtomicBoolean executed = new AtomicBoolean();
+    private final AtomicBoolean done = new AtomicBoolean();
+    private volatile boolean canceled = false;
+    private volatile boolean superseded = false;
+    @Nullable
+    private volatile Callback<T> callback;
+    @Nullable
+    private volatile ScheduledFuture<?> timer;
+
+    /**
+     * @param key           The key, compared by {@link Object#equals(Object)}.
+     * @param debounceNanos How long an enqueued call waits before it's sent, or 0 for sending it right away.
+     */
+    SwitchedCall(@NotNull Call<T> delegate, @NotNull Object key, long debounceNanos) {
+        super(delegate);
+        if (debounceNanos < 0) throw new IllegalArgumentException("debounce < 0");
+        this.key = key;
+        this.debounceNanos = debounceNanos;
+    }
+
+    /**
+     * @return Whether the call is a switched call that was superseded by a later call of its key.
+     */
+    static boolean isSuperseded(@NotNull Call<?> call) {
+        return call instanceof SwitchedCall && ((SwitchedCall<?>) call).superseded;
+    }
+
+    @Override
+    public @NotNull Response<T> execute() throws IOException {
+        if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+        supersedePrevious();
+        try {
+            return delegate.execute();
+        } finally {
+            LATEST.remove(key, this);
+        }
+    }
+
+    @Override
+    public void enqueue(@NotNull Callback<T> callback) {
+        if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+        supersedePrevious();
+        if (debounceNanos == 0) {
+            send(callback);
+            return;
+        }
+        this.callback = callback;
+        timer = Util.scheduler().schedule(() -> {
+            if (canceled) notifyCanceled();
+            else send(callback);
+        }, debounceNanos, TimeUnit.NANOSECONDS);
+        //canceled before the timer was set, cancel() couldn't see it
+        if (canceled) cancel();
+    }
+
+    private void supersedePrevious() {
+        var previous = LATEST.put(key, this);
+        if (previous != null && previous != this) {
+            previous.superseded = true;
+            previous.cancel();
+        }
+    }
+
+    private void send(@NotNull Callback<T> callback) {
+        delegate.enqueue(new Callback<>() {
+            @Override
+            public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+                LATEST.remove(key, SwitchedCall.this);
+                if (done.compareAndSet(false, true)) callback.onResponse(SwitchedCall.this, response);
+            }
+
+            @Override
+            public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+                LATEST.remove(key, SwitchedCall.this);
+                if (done.compareAndSet(false, true)) callback.onFailure(SwitchedCall.this, t);
+            }
+        });
+    }
+
+    private void notifyCanceled() {
+        LATEST.remove(key, this);
+        var callback = this.callback;
+        if (callback != null && done.compareAndSet(false, true))
+            callback.onFailure(this, new CanceledException(null));
+    }
+
+    @Override
+    public boolean isExecuted() {
+        return executed.get();
+    }
+
+    @Override
+    public void cancel() {
+        canceled = true;
+        var pending = timer;
+        //waiting for the window, there is no call in flight that would notify the callback
+        if (pending != null && pending.cancel(false)) notifyCanceled();
+        delegate.cancel();
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return canceled || delegate.isCanceled();
+    }
+
+    @Override
+    public @NotNull Call<T> clone() {
+        return new SwitchedCall<>(delegate.clone(), key, debounceNanos);
+    }
+}
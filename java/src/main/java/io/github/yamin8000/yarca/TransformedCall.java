@@ -0,0 +1,224 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import okhttp3.Request;
+import okio.Timeout;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * <h1>TransformedCall</h1>
+ * A call whose successful response body is transformed, either mapped to another body, or flat-mapped to a
+ * dependent call whose response becomes the response of this call.
+ * <p>
+ * The transform runs on the thread that completed the source call, usually an OkHttp thread, or on the given
+ * executor, so the heavy post-processing of a body doesn't run on the main thread. The callback of this call is
+ * executed on the same thread, and the adapter hops to the callback executor once, after the last stage.
+ * <br>
+ * A response that isn't successful isn't transformed, it's passed on with its error body. A transform that throws
+ * fails the call with its exception. Canceling this call cancels whichever stage is in flight.
+ *
+ * @param <T> Response body type of the source call.
+ * @param <R> Response body type of this call.
+ */
+final class TransformedCall<T, R> implements Call<R> {
+
+    private final Call<T> source;
+    @Nullable
+    private final Function<? super T, ? extends R> mapper;
+    @Nullable
+    private final Function<? super T, ? extends Call<R>> flatMapper;
+    @Nullable
+    private final Executor executor;
+
+    private final AtomicBoolean executed = new AtomicBoolean();
+    private volatile boolean canceled = false;
+    //the source call, or the dependent call once it's created
+    private volatile Call<?> active;
+
+    private TransformedCall(
+            @NotNull Call<T> source,
+            @Nullable Function<? super T, ? extends R> mapper,
+            @Nullable Function<? super T, ? extends Call<R>> flatMapper,
+            @Nullable Executor executor
+    ) {
+        this.source = source;
+        this.mapper = mapper;
+        this.flatMapper = flatMapper;
+        this.executor = executor;
+        this.active = source;
+    }
+
+    /**
+     * @param mapper   Maps the body of the successful response, which is null for an empty response.
+     * @param executor The executor that the mapper runs on, or null for the thread that completed the source call.
+     */
+    static <T, R> @NotNull TransformedCall<T, R> map(
+            @NotNull Call<T> source,
+            @NotNull Function<? super T, ? extends R> mapper,
+            @Nullable Executor executor
+    ) {
+        return new TransformedCall<>(source, mapper, null, executor);
+    }
+
+    /**
+     * @param flatMapper Creates the dependent call from the body of the successful response, it must not be executed.
+     */
+    static <T, R> @NotNull TransformedCall<T, R> flatMap(
+            @NotNull Call<T> source,
+            @NotNull Function<? super T, ? extends Call<R>> flatMapper
+    ) {
+        return new TransformedCall<>(source, null, flatMapper, null);
+    }
+
+    /**
+     * @return The outermost call of the given type in the chain of forwarding calls that starts with the call,
+     * continuing with the source calls of the transformed calls, or null if there is none.
+     */
+    @Nullable
+    static <C> C findInSource(@NotNull Call<?> call, @NotNull Class<C> type) {
+        while (!type.isInstance(call)) {
+            if (call instanceof ForwardingCall) call = ((ForwardingCall<?>) call).delegate;
+            else if (call instanceof TransformedCall) call = ((TransformedCall<?, ?>) call).source;
+            else return null;
+        }
+        return type.cast(call);
+    }
+
+    /**
+     * Executes the stages on the calling thread, the executor isn't used.
+     */
+    @Override
+    public @NotNull Response<R> execute() throws IOException {
+        if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+        var response = source.execute();
+        if (canceled) throw new CanceledException(null);
+        if (!response.isSuccessful()) return error(response);
+        if (mapper != null) return Response.success(mapper.apply(response.body()), response.raw());
+
+        var next = dependent(response.body());
+        active = next;
+        //canceled before the dependent call was set, cancel() couldn't see it
+        if (canceled) next.cancel();
+        return next.execute();
+    }
+
+    @Override
+    public void enqueue(@NotNull Callback<R> callback) {
+        if (!executed.compareAndSet(false, true)) throw new IllegalStateException("Already executed.");
+        source.enqueue(new Callback<>() {
+            @Override
+            public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+                if (executor == null) {
+                    transform(response, callback);
+                    return;
+                }
+                try {
+                    executor.execute(() -> transform(response, callback));
+                } catch (RejectedExecutionException e) {
+                    callback.onFailure(TransformedCall.this, e);
+                }
+            }
+
+            @Override
+            public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+                callback.onFailure(TransformedCall.this, t);
+            }
+        });
+    }
+
+    private void transform(@NotNull Response<T> response, @NotNull Callback<R> callback) {
+        if (canceled) {
+            callback.onFailure(this, new CanceledException(null));
+            return;
+        }
+        if (!response.isSuccessful()) {
+            callback.onResponse(this, error(response));
+            return;
+        }
+
+        Response<R> mapped = null;
+        Call<R> next = null;
+        try {
+            if (mapper != null) mapped = Response.success(mapper.apply(response.body()), response.raw());
+            else next = dependent(response.body());
+        } catch (Throwable t) {
+            callback.onFailure(this, t);
+            return;
+        }
+        if (mapped != null) {
+            callback.onResponse(this, mapped);
+            return;
+        }
+
+        active = next;
+        next.enqueue(new Callback<>() {
+            @Override
+            public void onResponse(@NotNull Call<R> call, @NotNull Response<R> response) {
+                callback.onResponse(TransformedCall.this, response);
+            }
+
+            @Override
+            public void onFailure(@NotNull Call<R> call, @NotNull Throwable t) {
+                callback.onFailure(TransformedCall.this, t);
+            }
+        });
+        if (canceled) next.cancel();
+    }
+
+    @NotNull
+    private Call<R> dependent(@Nullable T body) {
+        @SuppressWarnings("ConstantConditions")
+        var next = flatMapper.apply(body);
+        if (next == null) throw new NullPointerException("flatMap returned a null call");
+        return next;
+    }
+
+    @NotNull
+    private static <T, R> Response<R> error(@NotNull Response<T> response) {
+        //an unsuccessful response always has an error body
+        @SuppressWarnings("ConstantConditions")
+        var errorBody = response.errorBody();
+        return Response.error(errorBody, response.raw());
+    }
+
+    @Override
+    public boolean isExecuted() {
+        return executed.get();
+    }
+
+    @Override
+    public void cancel() {
+        canceled = true;
+        active.cancel();
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    @Override
+    public @NotNull Call<R> clone() {
+        return new TransformedCall<>(source.clone(), mapper, flatMapper, executor);
+    }
+
+    @Override
+    public @NotNull Request request() {
+        return source.request();
+    }
+
+    @Override
+    public @NotNull Timeout timeout() {
+        return source.timeout();
+    }
+}
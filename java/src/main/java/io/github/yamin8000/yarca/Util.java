@@ -3,10 +3,137 @@ package io.github.yamin8000.yarca;
 import android.os.Handler;
 import android.os.Looper;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+import okhttp3.Request;
+import retrofit2.http.DELETE;
+import retrofit2.http.GET;
+import retrofit2.http.HEAD;
+import retrofit2.http.HTTP;
+import retrofit2.http.OPTIONS;
+import retrofit2.http.PATCH;
+import retrofit2.http.POST;
+import retrofit2.http.PUT;
 
 class Util {
 
+    /**
+     * A shared single daemon thread for the timers of the library, like hedge delays.
+     * <p>
+     * Timers never block a thread while they wait, and the scheduled tasks must be short and non-blocking.
+     *
+     * @return The shared scheduler.
+     */
+    static ScheduledExecutorService scheduler() {
+        return SchedulerHolder.SCHEDULER;
+    }
+
+    /**
+     * Whether the request's method is idempotent, so sending it more than once, like hedging or retrying it,
+     * has the same effect as sending it once.
+     */
+    static boolean isIdempotent(@NotNull Request request) {
+        return isIdempotent(request.method());
+    }
+
+    static boolean isIdempotent(@NotNull String method) {
+        switch (method) {
+            case "GET":
+            case "HEAD":
+            case "OPTIONS":
+            case "PUT":
+            case "DELETE":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Name of the endpoint of a retrofit method, its HTTP method and relative URL template, like {@code GET posts/{id}}.
+     *
+     * @param annotations Annotations of the retrofit method.
+     * @return The endpoint name, or {@code UNKNOWN} if the method has no HTTP annotation.
+     */
+    @NotNull
+    static String endpointName(Annotation @NotNull [] annotations) {
+        for (var annotation : annotations) {
+            if (annotation instanceof GET) return "GET " + ((GET) annotation).value();
+            if (annotation instanceof POST) return "POST " + ((POST) annotation).value();
+            if (annotation instanceof PUT) return "PUT " + ((PUT) annotation).value();
+            if (annotation instanceof DELETE) return "DELETE " + ((DELETE) annotation).value();
+            if (annotation instanceof PATCH) return "PATCH " + ((PATCH) annotation).value();
+            if (annotation instanceof HEAD) return "HEAD " + ((HEAD) annotation).value();
+            if (annotation instanceof OPTIONS) return "OPTIONS " + ((OPTIONS) annotation).value();
+            if (annotation instanceof HTTP) return ((HTTP) annotation).method() + " " + ((HTTP) annotation).path();
+        }
+        return "UNKNOWN";
+    }
+
+    /**
+     * @param annotations Annotations of the retrofit method.
+     * @return The HTTP method of the retrofit method, or null if it has no HTTP annotation.
+     */
+    @Nullable
+    static String httpMethod(Annotation @NotNull [] annotations) {
+        for (var annotation : annotations) {
+            if (annotation instanceof GET) return "GET";
+            if (annotation instanceof POST) return "POST";
+            if (annotation instanceof PUT) return "PUT";
+            if (annotation instanceof DELETE) return "DELETE";
+            if (annotation instanceof PATCH) return "PATCH";
+            if (annotation instanceof HEAD) return "HEAD";
+            if (annotation instanceof OPTIONS) return "OPTIONS";
+            if (annotation instanceof HTTP) return ((HTTP) annotation).method();
+        }
+        return null;
+    }
+
+    /**
+     * Unlike {@link Type#getTypeName()}, it's available on every Android version.
+     *
+     * @return A name of the type that tells apart its type arguments, like {@code java.util.List<Post>}.
+     */
+    @NotNull
+    static String typeName(@NotNull Type type) {
+        return type instanceof Class ? ((Class<?>) type).getName() : type.toString();
+    }
+
+    private static final class SchedulerHolder {
+        private static final ScheduledExecutorService SCHEDULER = createScheduler();
+
+        private static ScheduledExecutorService createScheduler() {
+            var scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                var thread = new Thread(runnable, "yarca scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+            return scheduler;
+        }
+    }
+
+    /**
+     * @return Whether the current thread is the thread that the executor runs its tasks on,
+     * it's only known for the main thread executors, for other executors it's false.
+     */
+    static boolean isOnExecutorThread(@NotNull Executor executor) {
+        if (executor instanceof MainThreadExecutor || executor instanceof BatchingMainThreadExecutor)
+            return Looper.myLooper() == Looper.getMainLooper();
+        return false;
+    }
+
     /**
      * Executes the given runnable on the UI thread.
      *
@@ -20,4 +147,82 @@ class Util {
             handler.post(r);
         }
     }
+
+    /**
+     * Executes the given runnables on the UI thread in batches.
+     * <p>
+     * Unlike {@link MainThreadExecutor} which posts a message per runnable, runnables are queued and
+     * all the pending ones are drained, in order, by a single message that is posted once per window.
+     * So a burst of responses is delivered in one main looper message instead of one message per response.
+     * <p>
+     * A single drain runs for at most the given drain budget, the remaining runnables are drained by the next
+     * message so that the looper can render frames in between.
+     */
+    static final class BatchingMainThreadExecutor implements Executor {
+        private final Handler handler;
+        private final long windowMillis;
+        private final long maxDrainNanos;
+        private final LongSupplier nanoClock;
+        private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+        private final Runnable drain = this::drain;
+
+        /**
+         * Drains everything that is queued until the main looper gets to the drain message,
+         * with a drain budget of half a frame.
+         */
+        BatchingMainThreadExecutor() {
+            this(0, 8);
+        }
+
+        /**
+         * @param windowMillis   How long runnables are collected before they are drained, for example 16 for a frame.
+         * @param maxDrainMillis Maximum time a single drain may take.
+         */
+        BatchingMainThreadExecutor(long windowMillis, long maxDrainMillis) {
+            this(new Handler(Looper.getMainLooper()), windowMillis, maxDrainMillis, System::nanoTime);
+        }
+
+        /**
+         * @param handler        Handler of the looper that runnables are executed on.
+         * @param windowMillis   How long runnables are collected before they are drained.
+         * @param maxDrainMillis Maximum time a single drain may take.
+         * @param nanoClock      Clock used for measuring the drain time, in nanoseconds.
+         */
+        BatchingMainThreadExecutor(
+                @NotNull Handler handler,
+                long windowMillis,
+                long maxDrainMillis,
+                @NotNull LongSupplier nanoClock
+        ) {
+            this.handler = handler;
+            this.windowMillis = windowMillis;
+            this.maxDrainNanos = TimeUnit.MILLISECONDS.toNanos(maxDrainMillis);
+            this.nanoClock = nanoClock;
+        }
+
+        @Override
+        public void execute(Runnable r) {
+            queue.add(r);
+            if (isScheduled.compareAndSet(false, true)) {
+                if (windowMillis > 0) handler.postDelayed(drain, windowMillis);
+                else handler.post(drain);
+            }
+        }
+
+        private void drain() {
+            var deadline = nanoClock.getAsLong() + maxDrainNanos;
+            try {
+                Runnable runnable;
+                while ((runnable = queue.poll()) != null) {
+                    runnable.run();
+                    if (nanoClock.getAsLong() - deadline >= 0) break;
+                }
+            } finally {
+                //whatever is left, or queued while the flag was set, is drained by the next message
+                isScheduled.set(false);
+                if (!queue.isEmpty() && isScheduled.compareAndSet(false, true)) handler.post(drain);
+            }
+        }
+    }
 }
@@ -0,0 +1,97 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the warm-up of a host went, see {@link CallXAdapterFactory#warmUp(retrofit2.Retrofit, int)}.
+ * <p>
+ * The connections of a host are opened in parallel, so the time of each phase is the longest of its connections.
+ * A phase that didn't happen, like TLS for {@code http} or DNS for a cached address, takes 0.
+ */
+public final class WarmUpReport {
+
+    private final String host;
+    private final int connections;
+    private final long dnsNanos;
+    private final long connectNanos;
+    private final long tlsNanos;
+    private final long totalNanos;
+    @Nullable
+    private final Throwable failure;
+
+    WarmUpReport(
+            @NotNull String host,
+            int connections,
+            long dnsNanos,
+            long connectNanos,
+            long tlsNanos,
+            long totalNanos,
+            @Nullable Throwable failure
+    ) {
+        this.host = host;
+        this.connections = connections;
+        this.dnsNanos = dnsNanos;
+        this.connectNanos = connectNanos;
+        this.tlsNanos = tlsNanos;
+        this.totalNanos = totalNanos;
+        this.failure = failure;
+    }
+
+    /**
+     * @return Scheme, host and port that were warmed up, like {@code https://example.com:443}.
+     */
+    @NotNull
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return Number of new connections that were opened and left in the client's pool.
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    public long getDnsNanos() {
+        return dnsNanos;
+    }
+
+    /**
+     * @return Time of the TCP connect, including TLS.
+     */
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    public long getTlsNanos() {
+        return tlsNanos;
+    }
+
+    /**
+     * @return Time from the start of the warm-up until its last request of the host was done.
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return The first failure of the host's requests, like a canceled warm-up, or null if none failed.
+     */
+    @Nullable
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return host + " connections=" + connections +
+                ", dns=" + TimeUnit.NANOSECONDS.toMillis(dnsNanos) + "ms" +
+                ", connect=" + TimeUnit.NANOSECONDS.toMillis(connectNanos) + "ms" +
+                ", tls=" + TimeUnit.NANOSECONDS.toMillis(tlsNanos) + "ms" +
+                ", total=" + TimeUnit.NANOSECONDS.toMillis(totalNanos) + "ms" +
+                (failure == null ? "" : ", failure=" + failure);
+    }
+}
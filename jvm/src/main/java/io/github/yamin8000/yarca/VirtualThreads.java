@@ -0,0 +1,87 @@
+package io.github.yamin8000.yarca;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import retrofit2.Response;
+
+/**
+ * <h1>VirtualThreads</h1>
+ * Helpers for running CallX on virtual threads in JVM deployments, it requires JDK 21+.
+ * <p>
+ * A blocking {@link CallX#execute()} only parks a virtual thread, so writing blocking code on virtual threads
+ * lets a single process keep tens of thousands of requests in flight without a large thread pool.
+ * <br>
+ * For async calls, {@link #newDispatcher(int, int)} gives OkHttp a dispatcher that runs every call on its own
+ * virtual thread instead of its default cached thread pool.
+ */
+@SuppressWarnings("unused")
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return A new executor that runs each task on a new virtual thread.
+     */
+    @NotNull
+    static ExecutorService newExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("yarca ", 0).factory());
+    }
+
+    /**
+     * Creates an OkHttp {@link Dispatcher} that runs the async calls on virtual threads.
+     *
+     * @param maxRequests        Maximum number of requests to execute concurrently.
+     * @param maxRequestsPerHost Maximum number of requests for each host to execute concurrently.
+     * @return The dispatcher, set it with {@link OkHttpClient.Builder#dispatcher(Dispatcher)}.
+     */
+    @NotNull
+    static Dispatcher newDispatcher(int maxRequests, int maxRequestsPerHost) {
+        var executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("OkHttp Dispatcher ", 0).factory());
+        var dispatcher = new Dispatcher(executor);
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+        return dispatcher;
+    }
+
+    /**
+     * Creates a {@link CallXAdapterFactory} for the JVM.
+     * <p>
+     * Callbacks are notified directly on the OkHttp thread, which are virtual threads
+     * if the client uses {@link #newDispatcher(int, int)}.
+     *
+     * @param okHttpClient The client that the retrofit instance uses.
+     * @return The factory.
+     */
+    @NotNull
+    static CallXAdapterFactory newCallXAdapterFactory(@Nullable OkHttpClient okHttpClient) {
+        return new CallXAdapterFactory(okHttpClient, Runnable::run);
+    }
+
+    /**
+     * Executes each call with its blocking {@link CallX#execute()} on its own virtual thread and waits for all of them.
+     *
+     * @param calls The calls to execute.
+     * @return The responses in the same order as the given calls.
+     * @throws IOException          The first failure of the calls, the other calls are canceled.
+     * @throws InterruptedException If the current thread is interrupted while waiting, the calls are canceled.
+     * @see CallX#awaitAll(Collection, java.util.concurrent.Executor)
+     */
+    @NotNull
+    static <T> List<Response<T>> awaitAll(
+            @NotNull Collection<? extends CallX<T>> calls
+    ) throws IOException, InterruptedException {
+        try (var executor = newExecutor()) {
+            return CallX.awaitAll(calls, executor);
+        }
+    }
+}